@@ -5,8 +5,8 @@ import re
 
 # --- CRITICAL: These must be set BEFORE importing torch or transformers ---
 os.environ["TOKENIZERS_PARALLELISM"] = "false"
-os.environ["OMP_NUM_THREADS"] = "1"
-os.environ["MKL_NUM_THREADS"] = "1"
+os.environ.setdefault("OMP_NUM_THREADS", "1")  # ModelServerPool splits the cores between workers
+os.environ.setdefault("MKL_NUM_THREADS", "1")
 os.environ["USE_TF"] = "0"
 
 # Set start method before other imports, but wrapped in try/except 
@@ -63,10 +63,8 @@ class MemeLLMProcessor:
         # --- Do NOT call self.model.to() if device_map="auto" is used ---
         self.ner_model = GLiNER_Person_Entity_Prediction()
 
-    def process_query(self, query):
+    def __build_prompt(self, query):
         import time
-        import re
-        import json
 
         # 1. NER Prediction
         start_time = time.time()
@@ -74,6 +72,7 @@ class MemeLLMProcessor:
         # Initialize variables to ensure safety
         celebrities = []
         helper_prompt = ""
+        name_to_actor = {}
         
         try:
             # Get the mapping string (helper_prompt) and the list
@@ -90,9 +89,7 @@ class MemeLLMProcessor:
         caption_match = re.search(r'"(.*?)"', query)
         hint_caption = caption_match.group(1) if caption_match else "None detected"
 
-        # 3. LLM Extraction
-        start_time = time.time()
-
+        # 3. LLM Prompt
         # --- CHANGE 1: STATIC SYSTEM PROMPT ---
         system_prompt = """
         You are a smart database assistant. Extract structured JSON from the meme description.
@@ -151,6 +148,15 @@ class MemeLLMProcessor:
         # print("--------------------")
 
         text = self.tokenizer.apply_chat_template(messages, tokenize=False, add_generation_prompt=True)
+        return text, name_to_actor
+
+    def process_query(self, query):
+        import time
+
+        text, name_to_actor = self.__build_prompt(query)
+
+        # LLM Extraction
+        start_time = time.time()
         model_inputs = self.tokenizer([text], return_tensors="pt").to(self.device)
 
         generated_ids = self.model.generate(
@@ -169,13 +175,7 @@ class MemeLLMProcessor:
         print(f"LLM Time: {(time.time() - start_time) * 1000:.2f} ms")
         
         # Cleanup JSON
-        try:
-            json_start = response.find('{')
-            json_end = response.rfind('}') + 1
-            if json_start != -1 and json_end != -1:
-                response = response[json_start:json_end]
-        except:
-            pass
+        response = self.__extract_json(response)
         # final process to replace all character names with "a person" in the "text" field
         # # get the descriptive text from the response
         # text = json.loads(response).get("text", "")
@@ -194,6 +194,145 @@ class MemeLLMProcessor:
         return response
 
 
+    def process_queries(self, queries):
+        """
+        Analyzes several queries with one batched generate call; returns one JSON string per query, in order.
+        """
+        import time
+
+        prompts = []
+        mappings = []
+        for query in queries:
+            text, name_to_actor = self.__build_prompt(query)
+            prompts.append(text)
+            mappings.append(name_to_actor)
+
+        start_time = time.time()
+        # decoder-only models must be padded on the left so every prompt ends right before its generation
+        padding_side = self.tokenizer.padding_side
+        self.tokenizer.padding_side = "left"
+        try:
+            model_inputs = self.tokenizer(prompts, return_tensors="pt", padding=True).to(self.device)
+        finally:
+            self.tokenizer.padding_side = padding_side
+
+        generated_ids = self.model.generate(
+            **model_inputs,
+            max_new_tokens=256,
+            temperature=0.1,
+            do_sample=False
+        )
+
+        # with left padding every row's prompt has the same padded length
+        prompt_length = model_inputs.input_ids.shape[1]
+        responses = self.tokenizer.batch_decode(generated_ids[:, prompt_length:], skip_special_tokens=True)
+
+        print(f"LLM Batch Time ({len(queries)} queries): {(time.time() - start_time) * 1000:.2f} ms")
+
+        return [
+            self.__replace_celebrities_with_actors(self.__extract_json(response), name_to_actor)
+            for response, name_to_actor in zip(responses, mappings)
+        ]
+
+    def process_query_stream(self, query):
+        """
+        Same analysis as process_query, but yields the JSON object while the model is still generating.
+        Each top-level field is written as soon as its value is complete, so the caller can act on
+        "celebrities" before "caption" and "text" have been generated.
+        """
+        import time
+        from threading import Thread
+        from transformers import TextIteratorStreamer
+
+        text, name_to_actor = self.__build_prompt(query)
+
+        start_time = time.time()
+        model_inputs = self.tokenizer([text], return_tensors="pt").to(self.device)
+        streamer = TextIteratorStreamer(self.tokenizer, skip_prompt=True, skip_special_tokens=True)
+        generation = Thread(target=self.model.generate, kwargs=dict(
+            **model_inputs,
+            streamer=streamer,
+            max_new_tokens=256,
+            temperature=0.1,
+            do_sample=False
+        ))
+        generation.start()
+
+        # Walk the generated text character by character and cut it at the commas of the top-level object
+        depth = 0
+        in_string = False
+        escaped = False
+        done = False
+        member = ""
+        written = 0
+        yield "{"
+        for chunk in streamer:
+            for char in chunk:
+                if depth == 0:
+                    # skip anything the model writes before the object (e.g. ```json)
+                    if char == "{":
+                        depth = 1
+                    continue
+                if in_string:
+                    if escaped:
+                        escaped = False
+                    elif char == "\\":
+                        escaped = True
+                    elif char == '"':
+                        in_string = False
+                elif char == '"':
+                    in_string = True
+                elif char in "{[":
+                    depth += 1
+                elif char in "}]":
+                    depth -= 1
+                    if depth == 0:
+                        done = True
+                        break
+                elif char == "," and depth == 1:
+                    field = self.__stream_field(member, name_to_actor)
+                    if field:
+                        yield ("," if written else "") + field
+                        written += 1
+                    member = ""
+                    continue
+                member += char
+            if done:
+                # the generation thread finishes on its own, the rest of the output is not needed
+                break
+
+        field = self.__stream_field(member, name_to_actor)
+        if field:
+            yield ("," if written else "") + field
+        yield "}"
+
+        generation.join()
+        print(f"LLM Time: {(time.time() - start_time) * 1000:.2f} ms")
+
+    def __stream_field(self, member, name_to_actor):
+        import json
+
+        if not member.strip():
+            return None
+        try:
+            data = json.loads("{" + member + "}")
+        except:
+            print(f"[WARNING] Dropping malformed field from the LLM output: {member}")
+            return None
+        if "celebrities" in data and isinstance(data["celebrities"], list) and name_to_actor:
+            data["celebrities"] = [name_to_actor.get(name, name) for name in data["celebrities"]]
+        return json.dumps(data, ensure_ascii=False)[1:-1]
+
+    def __extract_json(self, response):
+        try:
+            json_start = response.find('{')
+            json_end = response.rfind('}') + 1
+            if json_start != -1 and json_end != -1:
+                response = response[json_start:json_end]
+        except:
+            pass
+        return response
+
     def __replace_celebrities_with_actors(self, response, name_to_actor):
         import json
 
@@ -119,4 +119,76 @@ class MobileCLIPEmbedder:
 
         except Exception as e:
             print(f"Error embedding text: {e}")
-            return None
\ No newline at end of file
+            return None
+
+    def get_text_embeddings(self, text_inputs, normalize=True):
+        """
+        Generates embeddings for a list of text strings in a single forward pass.
+
+        Args:
+            text_inputs (list[str]): The texts to embed.
+            normalize (bool): Whether to L2 normalize (Recommended).
+
+        Returns:
+            np.ndarray: The text embeddings (shape: [N, 512]), in the order of text_inputs.
+        """
+        try:
+            if not all(isinstance(text, str) for text in text_inputs):
+                raise ValueError("Text inputs must all be strings")
+
+            text_tensor = self.tokenizer(list(text_inputs)).to(self.device)
+
+            with torch.no_grad():
+                features = self.model.encode_text(text_tensor)
+
+                if normalize:
+                    features /= features.norm(dim=-1, keepdim=True)
+
+            return features.cpu().numpy().astype(np.float32)
+
+        except Exception as e:
+            print(f"Error embedding text batch: {e}")
+            return None
+
+    def get_embeddings(self, image_inputs, normalize=True):
+        """
+        Generates embeddings for a list of images in a single forward pass.
+
+        Args:
+            image_inputs (list[str]): Paths of the images to embed.
+            normalize (bool): Whether to L2 normalize (Recommended).
+
+        Returns:
+            list: One np.ndarray (shape: [512]) per input, in order; None for an image that could not be loaded.
+        """
+        tensors = []
+        loaded = []
+        for index, image_input in enumerate(image_inputs):
+            try:
+                image = Image.open(image_input).convert('RGB')
+                tensors.append(self.preprocess(image))
+                loaded.append(index)
+            except Exception as e:
+                print(f"Error loading image {image_input}: {e}")
+
+        results = [None] * len(image_inputs)
+        if not tensors:
+            return results
+
+        try:
+            image_tensor = torch.stack(tensors).to(self.device)
+
+            with torch.no_grad():
+                features = self.model.encode_image(image_tensor)
+
+                if normalize:
+                    features /= features.norm(dim=-1, keepdim=True)
+
+            features = features.cpu().numpy().astype(np.float32)
+            for row, index in enumerate(loaded):
+                results[index] = features[row]
+            return results
+
+        except Exception as e:
+            print(f"Error embedding image batch: {e}")
+            return None
@@ -0,0 +1,78 @@
+"""
+Exports the MobileCLIP text and image encoders to ONNX for the in-process encoders of the Java backend,
+together with the BPE vocabulary of the text tokenizer.
+
+    cd python && ../.venv/bin/python export_onnx.py
+"""
+import os
+import shutil
+
+import torch
+import mobileclip
+from open_clip.tokenizer import default_bpe
+from torchvision.transforms import CenterCrop
+
+MODELS_DIR = "./../models"
+MODEL_NAME = "mobileclip_s0"
+PRETRAINED_PATH = os.path.join(MODELS_DIR, "mobileclip_s0.pt")
+CONTEXT_LENGTH = 77
+
+
+class TextEncoder(torch.nn.Module):
+    def __init__(self, model):
+        super().__init__()
+        self.model = model
+
+    def forward(self, text):
+        # not normalized, the Java side L2-normalizes like MobileCLIPEmbedder does
+        return self.model.encode_text(text)
+
+
+class ImageEncoder(torch.nn.Module):
+    def __init__(self, model):
+        super().__init__()
+        self.model = model
+
+    def forward(self, image):
+        return self.model.encode_image(image)
+
+
+def export_image_encoder(model, image_size):
+    path = os.path.join(MODELS_DIR, f"{MODEL_NAME}_image.onnx")
+    dummy = torch.rand(1, 3, image_size, image_size)
+    torch.onnx.export(
+        ImageEncoder(model), (dummy,), path,
+        input_names=["image"], output_names=["embedding"],
+        dynamic_axes={"image": {0: "batch"}, "embedding": {0: "batch"}},
+        opset_version=17,
+    )
+    print(f"Image encoder exported to {path} (input 3x{image_size}x{image_size})")
+
+
+def export_text_encoder(model, tokenizer):
+    path = os.path.join(MODELS_DIR, f"{MODEL_NAME}_text.onnx")
+    dummy = tokenizer(["a photo of a cat"])
+    torch.onnx.export(
+        TextEncoder(model), (dummy,), path,
+        input_names=["text"], output_names=["embedding"],
+        dynamic_axes={"text": {0: "batch"}, "embedding": {0: "batch"}},
+        opset_version=17,
+    )
+    print(f"Text encoder exported to {path}")
+
+    # the MobileCLIP tokenizer is the open_clip CLIP tokenizer, the Java tokenizer reads the same merges
+    vocab_path = os.path.join(MODELS_DIR, os.path.basename(default_bpe()))
+    shutil.copyfile(default_bpe(), vocab_path)
+    print(f"BPE vocabulary copied to {vocab_path}")
+
+
+if __name__ == "__main__":
+    model, _, preprocess = mobileclip.create_model_and_transforms(MODEL_NAME, pretrained=PRETRAINED_PATH)
+    model.eval()
+    tokenizer = mobileclip.get_tokenizer(MODEL_NAME)
+
+    with torch.no_grad():
+        export_text_encoder(model, tokenizer)
+        # the crop size of the eval transform is the resolution the image encoder expects (CLIP_IMAGE_SIZE on the Java side)
+        crop = next(t for t in preprocess.transforms if isinstance(t, CenterCrop))
+        export_image_encoder(model, crop.size[0])
@@ -3,8 +3,8 @@ import multiprocessing
 import torch
 
 os.environ["TOKENIZERS_PARALLELISM"] = "false"
-os.environ["OMP_NUM_THREADS"] = "1"
-os.environ["MKL_NUM_THREADS"] = "1"
+os.environ.setdefault("OMP_NUM_THREADS", "1")  # ModelServerPool splits the cores between workers
+os.environ.setdefault("MKL_NUM_THREADS", "1")
 os.environ["USE_TF"] = "0"
 
 multiprocessing.set_start_method("spawn", force=True)
@@ -1,8 +1,11 @@
 import uvicorn
-from fastapi import FastAPI, HTTPException
+from fastapi import FastAPI, HTTPException, Request
+from fastapi.responses import Response, StreamingResponse
 from pydantic import BaseModel
 from contextlib import asynccontextmanager
 import json
+import socket
+import numpy as np
 import sys
 import os
 
@@ -56,8 +59,43 @@ class EmbedImageRequest(BaseModel):
 class EmbedTextRequest(BaseModel):
     text: str
 
+class BatchQueryRequest(BaseModel):
+    queries: list[str]
+
+class EmbedTextBatchRequest(BaseModel):
+    texts: list[str]
+
+class EmbedImageBatchRequest(BaseModel):
+    image_paths: list[str]
+
+OCTET_STREAM = "application/octet-stream"
+
+def wants_binary(http_request: Request):
+    return OCTET_STREAM in http_request.headers.get("accept", "")
+
+def binary_embeddings(embeddings):
+    """
+    One row of little-endian float32 per embedding, the row length in X-Embedding-Dim.
+    A failed embedding (None) is a row of NaN.
+    """
+    dim = next((embedding.size for embedding in embeddings if embedding is not None), 0)
+    if dim == 0:
+        raise HTTPException(status_code=500, detail="No embedding could be generated")
+    rows = np.full((len(embeddings), dim), np.nan, dtype="<f4")
+    for index, embedding in enumerate(embeddings):
+        if embedding is not None:
+            rows[index] = embedding.reshape(-1)
+    return Response(content=rows.tobytes(), media_type=OCTET_STREAM, headers={"X-Embedding-Dim": str(dim)})
+
 # --- ENDPOINTS ---
 
+@app.get("/health")
+async def health():
+    # async so it is answered by the event loop even while every worker thread is generating
+    if not ml_models.get("processor") or not ml_models.get("embedder"):
+        raise HTTPException(status_code=503, detail="Models not loaded")
+    return {"status": "ok"}
+
 @app.post("/analyze")
 def analyze_meme(request: QueryRequest):
     processor = ml_models.get("processor")
@@ -82,8 +120,37 @@ def analyze_meme(request: QueryRequest):
     except Exception as e:
         raise HTTPException(status_code=500, detail=str(e))
 
+@app.post("/analyze_stream")
+def analyze_meme_stream(request: QueryRequest):
+    processor = ml_models.get("processor")
+    if not processor:
+        raise HTTPException(status_code=503, detail="LLM Processor not active")
+
+    # The JSON object is written field by field while the model generates it
+    return StreamingResponse(processor.process_query_stream(request.query), media_type="application/json")
+
+@app.post("/analyze_batch")
+def analyze_meme_batch(request: BatchQueryRequest):
+    processor = ml_models.get("processor")
+    if not processor:
+        raise HTTPException(status_code=503, detail="LLM Processor not active")
+
+    try:
+        responses = processor.process_queries(request.queries)
+    except Exception as e:
+        raise HTTPException(status_code=500, detail=str(e))
+
+    # one entry per query, in order; a query whose output is not valid JSON gets an error entry
+    results = []
+    for response in responses:
+        try:
+            results.append(json.loads(response))
+        except json.JSONDecodeError:
+            results.append({"raw_response": response, "error": "Failed to parse JSON"})
+    return {"results": results}
+
 @app.post("/embed_image")
-def embed_image(request: EmbedImageRequest):
+def embed_image(request: EmbedImageRequest, http_request: Request):
     embedder = ml_models.get("embedder")
     if not embedder:
         raise HTTPException(status_code=503, detail="Embedder not active")
@@ -98,13 +165,17 @@ def embed_image(request: EmbedImageRequest):
         if embedding is None:
              raise HTTPException(status_code=400, detail="Failed to generate embedding (image corrupt?)")
 
+        if wants_binary(http_request):
+            return binary_embeddings([embedding])
         return {"embedding": embedding.flatten().tolist()}
         
+    except HTTPException:
+        raise
     except Exception as e:
         raise HTTPException(status_code=500, detail=str(e))
 
 @app.post("/embed_text")
-def embed_text(request: EmbedTextRequest):
+def embed_text(request: EmbedTextRequest, http_request: Request):
     embedder = ml_models.get("embedder")
     if not embedder:
         raise HTTPException(status_code=503, detail="Embedder not active")
@@ -120,10 +191,80 @@ def embed_text(request: EmbedTextRequest):
 
         # FIX: Flatten explicitly if the class returns 2D
         # If embedding is shape (1, 512), flatten it to (512,)
+        if wants_binary(http_request):
+            return binary_embeddings([embedding])
         return {"embedding": embedding.flatten().tolist()}
         
+    except HTTPException:
+        raise
+    except Exception as e:
+        raise HTTPException(status_code=500, detail=str(e))
+
+@app.post("/embed_text_batch")
+def embed_text_batch(request: EmbedTextBatchRequest, http_request: Request):
+    embedder = ml_models.get("embedder")
+    if not embedder:
+        raise HTTPException(status_code=503, detail="Embedder not active")
+
+    if not request.texts or any(not text or not text.strip() for text in request.texts):
+        raise HTTPException(status_code=400, detail="Text queries cannot be empty")
+
+    try:
+        embeddings = embedder.get_text_embeddings(request.texts, normalize=True)
+
+        if embeddings is None:
+             raise HTTPException(status_code=500, detail="Failed to generate text embeddings")
+
+        # shape (N, 512), one row per text in request order
+        if wants_binary(http_request):
+            return binary_embeddings(list(embeddings))
+        return {"embeddings": embeddings.tolist()}
+
+    except HTTPException:
+        raise
+    except Exception as e:
+        raise HTTPException(status_code=500, detail=str(e))
+
+@app.post("/embed_image_batch")
+def embed_image_batch(request: EmbedImageBatchRequest, http_request: Request):
+    embedder = ml_models.get("embedder")
+    if not embedder:
+        raise HTTPException(status_code=503, detail="Embedder not active")
+
+    try:
+        embeddings = embedder.get_embeddings(request.image_paths, normalize=True)
+
+        if embeddings is None:
+             raise HTTPException(status_code=500, detail="Failed to generate image embeddings")
+
+        # one entry per path in request order, null for a missing or corrupt image
+        if wants_binary(http_request):
+            return binary_embeddings(embeddings)
+        return {"embeddings": [None if embedding is None else embedding.tolist() for embedding in embeddings]}
+
+    except HTTPException:
+        raise
     except Exception as e:
         raise HTTPException(status_code=500, detail=str(e))
 
 if __name__ == "__main__":
-    uvicorn.run(app, host="127.0.0.1", port=8000)
\ No newline at end of file
+    # the backend starts one worker per port: python python_server.py <port> [<unix socket path>]
+    port = int(sys.argv[1]) if len(sys.argv) > 1 else 8000
+    uds_path = sys.argv[2] if len(sys.argv) > 2 else None
+
+    if uds_path is None:
+        uvicorn.run(app, host="127.0.0.1", port=port)
+    else:
+        # health checks and LLM calls stay on TCP, the embedding calls come over the Unix socket
+        config = uvicorn.Config(app, host="127.0.0.1", port=port)
+        tcp_socket = config.bind_socket()
+        if os.path.exists(uds_path):
+            os.remove(uds_path)  # left over by a worker that crashed
+        unix_socket = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+        unix_socket.bind(uds_path)
+        os.chmod(uds_path, 0o600)
+        try:
+            uvicorn.Server(config).run(sockets=[tcp_socket, unix_socket])
+        finally:
+            if os.path.exists(uds_path):
+                os.remove(uds_path)
\ No newline at end of file
@@ -1,9 +1,5 @@
 package cat.dog;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.io.File;
-
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -17,6 +13,11 @@ import cat.dog.repository.WeviateSchema;
 import cat.dog.repository.ElasticSearchDBManager;
 import cat.dog.repository.WeviateExtractedFaceImporter;
 import cat.dog.utility.CSVLoader;
+import cat.dog.utility.CelebGazetteer;
+import cat.dog.utility.MemeTextRemover;
+import cat.dog.utility.ModelServerPool;
+import cat.dog.utility.OnnxImageEncoder;
+import cat.dog.utility.OnnxTextEncoder;
 import cat.dog.repository.CelebVectorImporter;
 import cat.dog.repository.ChromaCollectionSetup;
 import cat.dog.repository.ChromaExtractedFaceImporter;
@@ -36,10 +37,12 @@ public class App implements CommandLineRunner
 
         startPythonServer();
         waitForPythonServer();
+        loadInProcessEncoders();
 
         setupPostgresSchema();
         addLabelTableToPostgres();
         addCelebTableToPostgres();
+        buildCelebGazetteer();
         setupWeaviateSchema();
         importMemeVectorsToWeaviate();
         setupElasticSearchIndices();
@@ -87,6 +90,9 @@ public class App implements CommandLineRunner
             importer.importCelebCSV("./../../DATA/celeb_mapping.csv"); 
         }
     }
+    private void buildCelebGazetteer() {
+        CelebGazetteer.getInstance().rebuild();
+    }
     private void setupWeaviateSchema() throws Exception {
         WeviateSchema.createWeviateClass("MemeImage", "A meme image's precomputed CLIP vector");
         WeviateSchema.createWeviateClass("MemeImageCleaned", "A meme image without text and its precomputed CLIP vector");
@@ -115,92 +121,32 @@ public class App implements CommandLineRunner
     private void importChromaExtractedFaces() throws Exception {
         ChromaExtractedFaceImporter.importExtractedFaces();
     }
-    private Process pythonProcess;
     /**
-     * Launches python_server.py using the virtual environment's Python binary.
-     * Runs in a background thread so it doesn't block Spring Boot.
+     * Loads the in-process encoders now rather than on the first query; each falls back to the Python server if disabled or missing.
      */
-    private void startPythonServer() {
-        Thread serverThread = new Thread(() -> {
-            try {
-                System.out.println("🐍 Launching Python Server...");
-
-                // 1. Get the absolute path of the project root (where pom.xml is)
-                String projectRootPath = System.getProperty("user.dir");
-                
-                // 2. Define files using absolute paths to avoid confusion
-                File pythonDir = new File(projectRootPath, "python");
-                File pythonExec = new File(projectRootPath, ".venv/bin/python");
-                
-                // 3. Validation
-                if (!pythonDir.exists()) {
-                    System.err.println("❌ Error: Directory not found: " + pythonDir.getAbsolutePath());
-                    return;
-                }
-                if (!pythonExec.exists()) {
-                    System.err.println("❌ Error: Python interpreter not found: " + pythonExec.getAbsolutePath());
-                    return;
-                }
-
-                // 4. Run Process
-                // Command: /Users/.../vectordb/.venv/bin/python python_server.py
-                // WorkDir: /Users/.../vectordb/python/ (So it can find ../models)
-                ProcessBuilder pb = new ProcessBuilder(pythonExec.getAbsolutePath(), "python_server.py");
-                pb.directory(pythonDir); 
-                pb.inheritIO(); 
-                
-                pythonProcess = pb.start();
-
-                // Shutdown Hook
-                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                    if (pythonProcess != null && pythonProcess.isAlive()) {
-                        System.out.println("🛑 Stopping Python Server...");
-                        pythonProcess.destroy();
-                    }
-                }));
-
-                int exitCode = pythonProcess.waitFor();
-                if (exitCode != 0) System.err.println("❌ Python crashed with code: " + exitCode);
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-
-        serverThread.setDaemon(true); 
-        serverThread.start();
+    private void loadInProcessEncoders() {
+        OnnxTextEncoder.getInstance();
+        OnnxImageEncoder.getInstance();
+        MemeTextRemover.getInstance();
     }
 
     /**
-     * Blocks execution until the Python server responds to a health check.
+     * Launches the python_server.py workers (MODEL_SERVER_WORKERS of them) using the virtual environment's Python.
+     * Each runs under a background supervisor thread that restarts it if it crashes, so this doesn't block Spring Boot.
      */
-    private void waitForPythonServer() throws InterruptedException {
-        System.out.println("⏳ Waiting for Python models to load...");
-        
-        // Try for up to 60 minutes (first run may take time to download models)
-        for (int i = 0; i < 1800; i++) {
-            if (isPythonServerUp()) {
-                System.out.println("✅ Python Server is Ready!");
-                return;
-            }
-            Thread.sleep(2000); // Wait 2s between checks
-        }
-        
-        throw new RuntimeException("❌ Python server failed to start in time.");
+    private void startPythonServer() {
+        System.out.println("🐍 Launching " + ModelServerPool.getInstance().size() + " Python Server worker(s)...");
+        ModelServerPool.getInstance().start();
     }
 
     /**
-     * specific check to see if FastAPI is responding
+     * Blocks execution until a Python worker responds to a health check.
      */
-    private boolean isPythonServerUp() {
-        try {
-            URL url = new URL("http://127.0.0.1:8000/docs"); // Standard FastAPI docs endpoint
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(1000); 
-            return conn.getResponseCode() == 200;
-        } catch (Exception e) {
-            return false;
-        }
+    private void waitForPythonServer() throws InterruptedException {
+        System.out.println("⏳ Waiting for Python models to load...");
+
+        // Try for up to 60 minutes (first run may take time to download models)
+        ModelServerPool.getInstance().awaitReady(3_600_000);
+        System.out.println("✅ Python Server is Ready!");
     }
 }
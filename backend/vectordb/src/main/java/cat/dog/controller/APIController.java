@@ -2,16 +2,38 @@ package cat.dog.controller;
 
 import cat.dog.dto.Base64Image;
 import cat.dog.repository.PostgresDbManager;
+import cat.dog.service.AdmissionGate;
+import cat.dog.service.LegPlanner;
 import cat.dog.service.QueryImageRetriever;
 import cat.dog.service.QueryTextRetriever;
+import cat.dog.service.RankingSessionStore;
+import cat.dog.service.SearchExecutor;
 import cat.dog.utility.Base64ImageConverter;
+import cat.dog.utility.ClipEmbedder;
+import cat.dog.utility.DataVersion;
+import cat.dog.utility.ImageEmbeddingCache;
+import cat.dog.utility.ModelServerLimiters;
+import cat.dog.utility.MemeTextRemover;
+import cat.dog.utility.ModelServerPool;
+import cat.dog.utility.OnnxImageEncoder;
+import cat.dog.utility.OnnxTextEncoder;
+import cat.dog.utility.QueryImage;
+import cat.dog.utility.QueryAnalysisCache;
+import cat.dog.utility.RetrievalConfig;
 import cat.dog.dto.Base64ImageResponse;
 import cat.dog.dto.LabelRecord;
+import cat.dog.dto.RetrievalResult;
 import tools.jackson.core.ObjectReadContext.Base;
 import javax.management.Query;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -19,68 +41,312 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
-@CrossOrigin(origins = {"http://localhost:5173", "https://localhost:5173"}, allowCredentials = "true")
+@CrossOrigin(origins = {"http://localhost:5173", "https://localhost:5173"}, allowCredentials = "true",
+        exposedHeaders = {"X-Partial-Results", "X-Missing-Legs", "X-Degraded-Mode", "Retry-After"})
 public class APIController {
+    private static final long STREAM_TIMEOUT_MS = 120_000;
+    private static final long BATCH_STREAM_TIMEOUT_MS = 3_600_000;
+    private static final int MAX_PAGE_SIZE = 100;
+    // admission control: a request that cannot get a slot within its queue budget is shed with a 503
+    private static final AdmissionGate TEXT_SEARCH_GATE = new AdmissionGate("searchByText",
+            RetrievalConfig.getInstance().getTextSearchMaxConcurrency(),
+            RetrievalConfig.getInstance().getTextSearchMaxQueue(),
+            RetrievalConfig.getInstance().getTextSearchMaxQueueWaitMs());
+    private static final AdmissionGate IMAGE_SEARCH_GATE = new AdmissionGate("uploadImageBase64",
+            RetrievalConfig.getInstance().getImageSearchMaxConcurrency(),
+            RetrievalConfig.getInstance().getImageSearchMaxQueue(),
+            RetrievalConfig.getInstance().getImageSearchMaxQueueWaitMs());
+    private static final AdmissionGate BATCH_SEARCH_GATE = new AdmissionGate("searchByTextBatch",
+            RetrievalConfig.getInstance().getBatchSearchMaxConcurrency(),
+            RetrievalConfig.getInstance().getBatchSearchMaxQueue(),
+            RetrievalConfig.getInstance().getBatchSearchMaxQueueWaitMs());
+
     @GetMapping("/hello")
     public String hello(@RequestParam(defaultValue = "World") String name) {
         return "Hello, " + name + "!\n";
     }
+    /**
+     * Counters of the caches and limiters in front of the search pipeline, for monitoring.
+     */
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("dataVersion", DataVersion.getInstance().current());
+        metrics.put("llmAnalysisCache", QueryAnalysisCache.getInstance().getStats());
+        metrics.put("textResultCache", QueryTextRetriever.getInstance().getCacheStats());
+        metrics.put("imageResultCache", QueryImageRetriever.getInstance().getCacheStats());
+        metrics.put("imageEmbeddingCache", ImageEmbeddingCache.getInstance().getStats());
+        metrics.put("textSingleFlight", QueryTextRetriever.getInstance().getSingleFlightStats());
+        metrics.put("imageSingleFlight", QueryImageRetriever.getInstance().getSingleFlightStats());
+        metrics.put("rankingSessions", RankingSessionStore.getInstance().getStats());
+        metrics.put("legPlanner", LegPlanner.getInstance().getStats());
+        metrics.put("textSearchAdmission", TEXT_SEARCH_GATE.getStats());
+        metrics.put("imageSearchAdmission", IMAGE_SEARCH_GATE.getStats());
+        metrics.put("batchSearchAdmission", BATCH_SEARCH_GATE.getStats());
+        metrics.put("modelServerLimiters", ModelServerLimiters.getInstance().getStats());
+        metrics.put("modelServerPool", ModelServerPool.getInstance().getStats());
+        metrics.put("embeddingBatchers", ClipEmbedder.getBatcherStats());
+        OnnxTextEncoder textEncoder = OnnxTextEncoder.getInstance();
+        if (textEncoder != null) {
+            metrics.put("onnxTextEncoder", textEncoder.getStats());
+        }
+        OnnxImageEncoder imageEncoder = OnnxImageEncoder.getInstance();
+        if (imageEncoder != null) {
+            metrics.put("onnxImageEncoder", imageEncoder.getStats());
+        }
+        MemeTextRemover textRemover = MemeTextRemover.getInstance();
+        if (textRemover != null) {
+            metrics.put("textRemover", textRemover.getStats());
+        }
+        return metrics;
+    }
     @PostMapping("/uploadImageBase64")
     public ResponseEntity<List<Base64ImageResponse>> uploadImageBase64(@RequestBody Base64Image request) {
-        boolean success = Base64ImageConverter.saveBase64AsPng(request.getImageBase64());
-        if (!success) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(null);  // failed to decode image
-        }
-        QueryImageRetriever retriever = QueryImageRetriever.getInstance();
-        List<String> results = retriever.retrieveSimilarImages("./received_images/query_image.png", 40);
-        List<String> resultsBase64 = new java.util.ArrayList<>();
-        List<String> sentiments = new java.util.ArrayList<>();
-        List<String> filePaths = new java.util.ArrayList<>();
-        PostgresDbManager labelDbManager = new PostgresDbManager();
-        for (String res : results) {
-            LabelRecord record = labelDbManager.getRecordByImageName(res);
-            String imagePath = record.getImagePath();
-            filePaths.add(imagePath);
-            String sentiment = record.getSentiment().toDbValue();
-            String base64Image = Base64ImageConverter.convertToBase64(imagePath);
-            resultsBase64.add(base64Image);
-            sentiments.add(sentiment);
+        if (!IMAGE_SEARCH_GATE.tryEnter()) {
+            return overloaded();
         }
-        List<Base64ImageResponse> responseList = new java.util.ArrayList<>();
-        for (int i = 0; i < resultsBase64.size(); i++) {
-            responseList.add(new Base64ImageResponse(filePaths.get(i), resultsBase64.get(i), sentiments.get(i)));
+        try {
+            List<String> results;
+            try (QueryImage image = QueryImage.fromBase64(request.getImageBase64())) {
+                if (image == null) {
+                    return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                            .body(null);  // failed to decode image
+                }
+                results = QueryImageRetriever.getInstance().retrieveSimilarImages(image, 40);
+            }
+            List<Base64ImageResponse> responseList = toResponseList(results, new HashMap<>());
+            System.out.println("Returning " + responseList.size() + " images.");
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(responseList);
+        } finally {
+            IMAGE_SEARCH_GATE.release();
         }
-        System.out.println("Returning " + responseList.size() + " images.");
-        return ResponseEntity.status(HttpStatus.OK)
-                .body(responseList);
     }
     @PostMapping("/searchByText")
     public ResponseEntity<List<Base64ImageResponse>> searchByText(@RequestBody String textQuery) {
-        System.out.println("Received text query: " + textQuery);
-        QueryTextRetriever retriever = QueryTextRetriever.getInstance();
-        List<String> results = retriever.retrieveSimilarImages(textQuery, 20);
-        List<String> resultsBase64 = new java.util.ArrayList<>();
-        List<String> sentiments = new java.util.ArrayList<>();
-        List<String> filePaths = new java.util.ArrayList<>();
-        PostgresDbManager labelDbManager = new PostgresDbManager();
-        for (String res : results) {
-            LabelRecord record = labelDbManager.getRecordByImageName(res);
-            String imagePath = record.getImagePath();
-            filePaths.add(imagePath);
-            String sentiment = record.getSentiment().toDbValue();
-            String base64Image = Base64ImageConverter.convertToBase64(imagePath);
-            resultsBase64.add(base64Image);
-            sentiments.add(sentiment);
+        if (!TEXT_SEARCH_GATE.tryEnter()) {
+            return overloaded();
         }
-        List<Base64ImageResponse> responseList = new java.util.ArrayList<>();
-        for (int i = 0; i < resultsBase64.size(); i++) {
-            responseList.add(new Base64ImageResponse(filePaths.get(i), resultsBase64.get(i), sentiments.get(i)));
+        try {
+            System.out.println("Received text query: " + textQuery);
+            QueryTextRetriever retriever = QueryTextRetriever.getInstance();
+            RetrievalResult retrievalResult = retriever.retrieve(textQuery, 20);
+            List<Base64ImageResponse> responseList = toResponseList(retrievalResult.getImageNames(), new HashMap<>());
+            System.out.println("Returning " + responseList.size() + " images.");
+            // legs that missed their deadline are reported in headers so the body stays a plain list
+            return ResponseEntity.status(HttpStatus.OK)
+                    .header("X-Partial-Results", String.valueOf(retrievalResult.isPartial()))
+                    .header("X-Missing-Legs", String.join(",", retrievalResult.getMissingLegs()))
+                    .header("X-Degraded-Mode", String.valueOf(retrievalResult.isDegraded()))
+                    .body(responseList);
+        } finally {
+            TEXT_SEARCH_GATE.release();
+        }
+    }
+    /**
+     * Paged variant of /uploadImageBase64: the whole fused ranking is kept server-side,
+     * only the first page is encoded and the response carries a cursor to the next one.
+     */
+    @PostMapping("/uploadImageBase64/paged")
+    public ResponseEntity<Map<String, Object>> uploadImageBase64Paged(@RequestBody Base64Image request,
+                                                                      @RequestParam(defaultValue = "20") int pageSize) {
+        if (!IMAGE_SEARCH_GATE.tryEnter()) {
+            return overloaded();
+        }
+        try {
+            int depth = RetrievalConfig.getInstance().getPaginationDepth();
+            List<String> results;
+            try (QueryImage image = QueryImage.fromBase64(request.getImageBase64())) {
+                if (image == null) {
+                    return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                            .body(null);  // failed to decode image
+                }
+                results = QueryImageRetriever.getInstance().retrieveSimilarImages(image, depth);
+            }
+            RetrievalResult ranking = new RetrievalResult(results, new java.util.ArrayList<>());
+            String sessionId = RankingSessionStore.getInstance().open(ranking);
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(toPage(sessionId, ranking, 0, pageSize));
+        } finally {
+            IMAGE_SEARCH_GATE.release();
+        }
+    }
+    /**
+     * Paged variant of /searchByText, see /uploadImageBase64/paged.
+     */
+    @PostMapping("/searchByText/paged")
+    public ResponseEntity<Map<String, Object>> searchByTextPaged(@RequestBody String textQuery,
+                                                                 @RequestParam(defaultValue = "20") int pageSize) {
+        if (!TEXT_SEARCH_GATE.tryEnter()) {
+            return overloaded();
+        }
+        try {
+            System.out.println("Received paged text query: " + textQuery);
+            int depth = RetrievalConfig.getInstance().getPaginationDepth();
+            RetrievalResult ranking = QueryTextRetriever.getInstance().retrieve(textQuery, depth);
+            String sessionId = RankingSessionStore.getInstance().open(ranking);
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(toPage(sessionId, ranking, 0, pageSize));
+        } finally {
+            TEXT_SEARCH_GATE.release();
+        }
+    }
+    /**
+     * Next page of a paged search. No retrieval leg runs again; 410 once the session has expired.
+     */
+    @GetMapping("/results")
+    public ResponseEntity<Map<String, Object>> results(@RequestParam String cursor,
+                                                       @RequestParam(defaultValue = "20") int pageSize) {
+        String[] position;
+        try {
+            position = RankingSessionStore.decodeCursor(cursor);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(null);
+        }
+        RetrievalResult ranking = RankingSessionStore.getInstance().get(position[0]);
+        if (ranking == null) {
+            return ResponseEntity.status(HttpStatus.GONE)
+                    .body(null);
         }
-        System.out.println("Returning " + responseList.size() + " images.");
         return ResponseEntity.status(HttpStatus.OK)
-                .body(responseList);
+                .body(toPage(position[0], ranking, Integer.parseInt(position[1]), pageSize));
+    }
+    /**
+     * Streams the text search as Server-Sent Events: a "provisional" event with the fused ranking
+     * each time a retrieval leg finishes, then a "final" event once fusion is complete.
+     * Admitted through the text search gate; the slot is held until the stream ends.
+     */
+    @PostMapping(value = "/searchByTextStream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> searchByTextStream(@RequestBody String textQuery) {
+        if (!TEXT_SEARCH_GATE.tryEnter()) {
+            return overloaded();
+        }
+        System.out.println("Received streaming text query: " + textQuery);
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MS);
+        releaseWhenDone(emitter, TEXT_SEARCH_GATE);
+        // images already encoded for an earlier event of this stream are not encoded again
+        Map<String, Base64ImageResponse> hydrated = new ConcurrentHashMap<>();
+        SearchExecutor.getInstance().supply(() -> {
+            try {
+                RetrievalResult finalResult = QueryTextRetriever.getInstance().retrieve(textQuery, 20, provisional -> {
+                    try {
+                        emitter.send(SseEmitter.event()
+                                .name("provisional")
+                                .data(toStreamEvent(provisional, hydrated)));
+                    } catch (Exception e) {
+                        System.err.println("Failed to send provisional results: " + e.getMessage());
+                    }
+                });
+                emitter.send(SseEmitter.event()
+                        .name("final")
+                        .data(toStreamEvent(finalResult, hydrated)));
+                emitter.complete();
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            }
+            return null;
+        });
+        return ResponseEntity.ok(emitter);
+    }
+    /**
+     * Searches a list of queries for batch jobs. Results are streamed as newline-delimited JSON,
+     * one line per query as soon as it is ready, each carrying the query's position in the request.
+     * Admitted through the batch search gate; the slot is held until the stream ends.
+     */
+    @PostMapping(value = "/searchByTextBatch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> searchByTextBatch(@RequestBody List<String> textQueries) {
+        if (!BATCH_SEARCH_GATE.tryEnter()) {
+            return overloaded();
+        }
+        System.out.println("Received batch of " + textQueries.size() + " text queries");
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(BATCH_STREAM_TIMEOUT_MS);
+        releaseWhenDone(emitter, BATCH_SEARCH_GATE);
+        SearchExecutor.getInstance().supply(() -> {
+            try {
+                QueryTextRetriever.getInstance().retrieveBatch(textQueries, 20, (index, result) -> {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("index", index);
+                    line.put("query", textQueries.get(index));
+                    line.putAll(toStreamEvent(result, new HashMap<>()));
+                    // results of different queries finish on different threads, lines must not interleave
+                    synchronized (emitter) {
+                        try {
+                            emitter.send(line, MediaType.APPLICATION_JSON);
+                            emitter.send("\n", MediaType.TEXT_PLAIN);
+                        } catch (Exception e) {
+                            System.err.println("Failed to send batch result " + index + ": " + e.getMessage());
+                        }
+                    }
+                });
+                emitter.complete();
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            }
+            return null;
+        });
+        return ResponseEntity.ok(emitter);
+    }
+    /**
+     * Releases the admission slot once the emitter completes, times out or fails, whichever comes first.
+     */
+    private void releaseWhenDone(ResponseBodyEmitter emitter, AdmissionGate gate) {
+        AtomicBoolean released = new AtomicBoolean(false);
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                gate.release();
+            }
+        };
+        emitter.onCompletion(release);
+        emitter.onTimeout(release);
+        emitter.onError(error -> release.run());
+    }
+    private <T> ResponseEntity<T> overloaded() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header("Retry-After", String.valueOf(RetrievalConfig.getInstance().getAdmissionRetryAfterS()))
+                .body(null);
+    }
+    private Map<String, Object> toPage(String sessionId, RetrievalResult ranking, int offset, int pageSize) {
+        pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        List<String> imageNames = ranking.getImageNames();
+        int from = Math.min(offset, imageNames.size());
+        int to = Math.min(from + pageSize, imageNames.size());
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("total", imageNames.size());
+        page.put("offset", from);
+        page.put("nextCursor", to < imageNames.size() ? RankingSessionStore.encodeCursor(sessionId, to) : null);
+        page.put("partial", ranking.isPartial());
+        page.put("missingLegs", ranking.getMissingLegs());
+        page.put("degraded", ranking.isDegraded());
+        // only the images of this page are encoded
+        page.put("images", toResponseList(imageNames.subList(from, to), new HashMap<>()));
+        return page;
+    }
+    private Map<String, Object> toStreamEvent(RetrievalResult result, Map<String, Base64ImageResponse> hydrated) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("partial", result.isPartial());
+        event.put("missingLegs", result.getMissingLegs());
+        event.put("degraded", result.isDegraded());
+        event.put("images", toResponseList(result.getImageNames(), hydrated));
+        return event;
+    }
+    private List<Base64ImageResponse> toResponseList(List<String> imageNames, Map<String, Base64ImageResponse> hydrated) {
+        PostgresDbManager labelDbManager = new PostgresDbManager();
+        List<Base64ImageResponse> responseList = new java.util.ArrayList<>();
+        for (String res : imageNames) {
+            Base64ImageResponse response = hydrated.computeIfAbsent(res, imageName -> {
+                LabelRecord record = labelDbManager.getRecordByImageName(imageName);
+                String imagePath = record.getImagePath();
+                String sentiment = record.getSentiment().toDbValue();
+                String base64Image = Base64ImageConverter.convertToBase64(imagePath);
+                return new Base64ImageResponse(imagePath, base64Image, sentiment);
+            });
+            responseList.add(response);
+        }
+        return responseList;
     }
 }
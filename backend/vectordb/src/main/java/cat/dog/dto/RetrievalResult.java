@@ -0,0 +1,28 @@
+package cat.dog.dto;
+
+import java.util.List;
+
+public class RetrievalResult {
+    private List<String> imageNames;
+    private List<String> missingLegs;
+    private boolean degraded;
+
+    public RetrievalResult(List<String> imageNames, List<String> missingLegs) {
+        this(imageNames, missingLegs, false);
+    }
+
+    public RetrievalResult(List<String> imageNames, List<String> missingLegs, boolean degraded) {
+        this.imageNames = imageNames;
+        this.missingLegs = missingLegs;
+        this.degraded = degraded;
+    }
+
+    public List<String> getImageNames() { return imageNames; }
+    public List<String> getMissingLegs() { return missingLegs; }
+
+    // true when at least one leg missed its deadline, or was skipped for being slow, and the ranking was fused without it
+    public boolean isPartial() { return !missingLegs.isEmpty(); }
+
+    // true when the LLM analysis was bypassed and the legs ran on the raw query
+    public boolean isDegraded() { return degraded; }
+}
@@ -39,6 +39,9 @@ public class CelebFaceSearcher {
         // }   
 
     }
+    /**
+     * @return the face embeddings of the celebrity, empty if it has none; null if Weaviate could not be queried.
+     */
     public static List<CelebEmbedding> getEmbeddingsByName(String celebName) {
         // Weaviate GraphQL 'where' filter for exact string matching
         // Note the triple backslashes (\\\"%s\\\") needed to escape quotes inside the JSON query string
@@ -67,7 +70,8 @@ public class CelebFaceSearcher {
 
         String graphqlQuery = buildWeaviateQuery(vectorString, filters);
 
-        return executeSearch(graphqlQuery);
+        List<CelebEmbedding> results = executeSearch(graphqlQuery);
+        return results != null ? results : new ArrayList<>();
     }
     
     private static String buildWeaviateQuery(String vectorJson, Map<String, String> filters) {
@@ -90,6 +94,7 @@ public class CelebFaceSearcher {
         throw new UnsupportedOperationException("Unimplemented method 'buildFilters'");
     }
     
+    // null when the request failed, so a failure is not mistaken for "no match"
     private static List<CelebEmbedding> executeSearch(String jsonPayload) {
         final String WEAVIATE_URL = DatabaseConfig.getInstance().getWeviateUrl() + "/graphql";
         List<CelebEmbedding> results = new ArrayList<>();
@@ -144,9 +149,15 @@ public class CelebFaceSearcher {
                 }
             } else {
                 System.err.println("Error " + response.statusCode() + ": " + response.body());
+                return null;
             }
+        } catch (InterruptedException e) {
+            // the calling leg was cancelled
+            Thread.currentThread().interrupt();
+            return null;
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
         }
 
         return results;
@@ -9,6 +9,7 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.DatabaseConfig;
 
 public class CelebVectorImporter {
@@ -111,6 +112,7 @@ public class CelebVectorImporter {
 
             int exitCode = process.waitFor();
             System.out.println("\nProcess finished with exit code: " + exitCode);
+            DataVersion.getInstance().bump();
             
             tempScript.delete();
 
@@ -5,6 +5,8 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import cat.dog.utility.CelebGazetteer;
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.DatabaseConfig;
 
 public class DropTablePostgres {
@@ -27,6 +29,10 @@ public class DropTablePostgres {
 
             String sql = "DROP TABLE IF EXISTS " + tableName + " CASCADE";
             stmt.executeUpdate(sql);
+            DataVersion.getInstance().bump();
+            if (tableName.equalsIgnoreCase("celeb")) {
+                CelebGazetteer.getInstance().invalidate();
+            }
 
             System.out.println("Table " + tableName + " deleted successfully.");
 
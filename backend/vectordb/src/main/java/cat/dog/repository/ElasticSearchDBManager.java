@@ -4,6 +4,7 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpResponse;
 
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.DatabaseConfig;
 
 import java.net.http.HttpRequest;
@@ -180,6 +181,7 @@ public class ElasticSearchDBManager {
             }
         }
 
+        DataVersion.getInstance().bump();
         System.out.println("Finished importing " + celebNames.size() + " celebrity names.");
     }
 
@@ -354,6 +356,7 @@ public class ElasticSearchDBManager {
                 e.printStackTrace();
             }
         }
+        DataVersion.getInstance().bump();
     }
 
     public List<Map.Entry<Integer, String>> fuzzySearchCaptions(String query, float minScore) {
@@ -17,6 +17,7 @@ import org.json.JSONObject;
 
 import cat.dog.utility.ClipEmbedder;
 import cat.dog.utility.DatabaseConfig;
+import cat.dog.utility.QueryImage;
 
 public class MemeSearcher {
     
@@ -51,12 +52,18 @@ public class MemeSearcher {
             return new ArrayList<>();
         }
 
-        String graphqlQuery = buildWeivateQuery(vectorString, classString, filters);
+        return searchByVector(vectorString, classString, filters);
+    }
+
+    /**
+     * Searches with a vector that was already embedded, e.g. by a batched call to the embedding server.
+     */
+    public static List<String> searchByVector(String vectorJson, String classString, Map<String, String> filters) {
+        String graphqlQuery = buildWeivateQuery(vectorJson, classString, filters);
 
         return executeSearch(graphqlQuery, classString);
     }
 
-    
 
     public static List<String> searchByImage(String imagePath, String classString, Map<String, String> filters) {
         File imageFile = new File(imagePath);
@@ -76,6 +83,27 @@ public class MemeSearcher {
 
        return executeSearch(graphqlQuery, classString);
     }
+
+    /**
+     * Searches with an uploaded image held in memory, see ClipEmbedder.embedImageVector(QueryImage).
+     */
+    public static List<String> searchByImage(QueryImage image, String classString, Map<String, String> filters) {
+        return searchByImageVector(ClipEmbedder.embedImageVector(image), classString, filters);
+    }
+
+    /**
+     * Searches with an image embedding that was already computed or cached; a null vector (failed embedding) finds nothing.
+     */
+    public static List<String> searchByImageVector(float[] vector, String classString, Map<String, String> filters) {
+        String vectorString = ClipEmbedder.toJson(vector);
+
+        if (vectorString == null) {
+            System.err.println("Failed to generate vector.");
+            return new ArrayList<>();
+        }
+
+        return searchByVector(vectorString, classString, filters);
+    }
     
 
     private static String buildWeivateQuery(String vectorJson, String classString, Map<String, String> filters) {
@@ -15,6 +15,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.DatabaseConfig;
 
 public class MemeVectorImporter {
@@ -77,6 +78,7 @@ public class MemeVectorImporter {
                 processFile(client, file, counter.incrementAndGet(), total, className);
             }
 
+            DataVersion.getInstance().bump();
             System.out.println("\nImport process complete for class " + className);
 
         } catch (Exception e) {
@@ -22,6 +22,9 @@ public class PostgresDbManager {
     public PostgresDbManager() {
     }
 
+    /**
+     * Inserts one row; the importer bumps the DataVersion once the whole import is done.
+     */
     public void insertLabelRecord(LabelRecord record) {
 
         String url = DatabaseConfig.getInstance().getJdbcUrl();
@@ -49,6 +52,9 @@ public class PostgresDbManager {
             e.printStackTrace();
         }
     }
+    /**
+     * Inserts one row; the importer invalidates the CelebGazetteer and bumps the DataVersion once the whole import is done.
+     */
     public void insertCelebRecord(CelebRecord celebRecord) {
         String url = DatabaseConfig.getInstance().getJdbcUrl();
         String user = DatabaseConfig.getInstance().getPostgresUser();
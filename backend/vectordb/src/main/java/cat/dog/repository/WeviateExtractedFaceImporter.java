@@ -9,6 +9,7 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.DatabaseConfig;
 
 public class WeviateExtractedFaceImporter {
@@ -114,6 +115,7 @@ public class WeviateExtractedFaceImporter {
 
             int exitCode = process.waitFor();
             System.out.println("\nProcess finished with exit code: " + exitCode);
+            DataVersion.getInstance().bump();
             
             tempScript.delete();
 
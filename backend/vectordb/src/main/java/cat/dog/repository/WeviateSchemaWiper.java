@@ -5,6 +5,7 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.DatabaseConfig;
 
 public class WeviateSchemaWiper {
@@ -32,6 +33,7 @@ public class WeviateSchemaWiper {
         HttpResponse<String> deleteResponse = client.send(deleteRequest, HttpResponse.BodyHandlers.ofString());
 
         System.out.println("Delete status: " + deleteResponse.statusCode());
+        DataVersion.getInstance().bump();
         System.out.println(deleteResponse.body());
     }
 
@@ -0,0 +1,89 @@
+package cat.dog.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for one endpoint: at most maxConcurrency requests run, at most maxQueue more wait
+ * for a slot, and none waits longer than maxQueueWaitMs. Everything else is turned away at once,
+ * so an overloaded server keeps answering the requests it accepted instead of piling up threads.
+ */
+public class AdmissionGate {
+    private final String name;
+    private final int maxConcurrency;
+    private final int maxQueue;
+    private final long maxQueueWaitMs;
+    private final Semaphore slots;
+
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong rejectedQueueFull = new AtomicLong(0);
+    private final AtomicLong rejectedQueueTimeout = new AtomicLong(0);
+    private final AtomicLong totalQueueWaitMs = new AtomicLong(0);
+    private final AtomicLong maxObservedQueueWaitMs = new AtomicLong(0);
+
+    public AdmissionGate(String name, int maxConcurrency, int maxQueue, long maxQueueWaitMs) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueue = maxQueue;
+        this.maxQueueWaitMs = maxQueueWaitMs;
+        this.slots = new Semaphore(maxConcurrency, true);
+    }
+
+    /**
+     * Waits for a slot within the queue budget. A true result must be paired with release().
+     */
+    public boolean tryEnter() {
+        if (slots.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            rejectedQueueFull.incrementAndGet();
+            System.out.println(name + ": queue full, request rejected");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        boolean entered = false;
+        try {
+            entered = slots.tryAcquire(maxQueueWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+        long waited = System.currentTimeMillis() - start;
+        totalQueueWaitMs.addAndGet(waited);
+        maxObservedQueueWaitMs.accumulateAndGet(waited, Math::max);
+        if (!entered) {
+            rejectedQueueTimeout.incrementAndGet();
+            System.out.println(name + ": no slot within " + maxQueueWaitMs + " ms, request rejected");
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrency", maxConcurrency);
+        stats.put("active", maxConcurrency - slots.availablePermits());
+        stats.put("queueDepth", queued.get());
+        stats.put("maxQueue", maxQueue);
+        stats.put("admitted", admitted.get());
+        stats.put("rejectedQueueFull", rejectedQueueFull.get());
+        stats.put("rejectedQueueTimeout", rejectedQueueTimeout.get());
+        stats.put("totalQueueWaitMs", totalQueueWaitMs.get());
+        stats.put("maxQueueWaitMs", maxObservedQueueWaitMs.get());
+        return stats;
+    }
+}
@@ -0,0 +1,197 @@
+package cat.dog.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cat.dog.dto.CelebEmbedding;
+import cat.dog.repository.CelebFaceSearcher;
+import cat.dog.utility.DataVersion;
+import cat.dog.utility.LruTtlCache;
+
+/**
+ * Decides which retrieval legs of a text query are worth running, before they run.
+ * A leg is skipped when its input cannot match anything (empty or "a person" caption/text,
+ * no celebrity with face embeddings), or when its recent latency is above its deadline so it
+ * would be dropped from fusion anyway. Every decision and every leg latency is recorded for /metrics.
+ */
+public class LegPlanner {
+    private static final LegPlanner INSTANCE = new LegPlanner();
+
+    public static final String UNINFORMATIVE = "uninformative input";
+    public static final String NO_CELEBRITIES = "no celebrities";
+    public static final String NO_FACE_EMBEDDINGS = "no face embeddings";
+    public static final String TOO_SLOW = "recent latency above deadline";
+
+    // weight of the newest sample in the moving average of a leg's latency
+    private static final double EWMA_ALPHA = 0.2;
+    // a leg skipped for being slow still runs once in this many plans, so its statistics can recover
+    private static final int PROBE_INTERVAL = 10;
+    // face embeddings of a celebrity only change with an import, which bumps the data version
+    private static final int CELEB_EMBEDDING_CACHE_SIZE = 1000;
+    private static final long CELEB_EMBEDDING_CACHE_TTL_MS = 3_600_000;
+
+    private final Map<String, LegStats> stats = new ConcurrentHashMap<>();
+    private final LruTtlCache<String, List<CelebEmbedding>> celebEmbeddings =
+            new LruTtlCache<>("celebEmbeddings", CELEB_EMBEDDING_CACHE_SIZE, CELEB_EMBEDDING_CACHE_TTL_MS);
+    private volatile Map<String, String> lastPlan = new LinkedHashMap<>();
+
+    private LegPlanner() {
+
+    }
+
+    public static LegPlanner getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return why a caption or descriptive-text leg should not run on this value, or null to run it.
+     */
+    public String skipReason(String legName, String value, long timeoutMs) {
+        if (isUninformative(value)) {
+            return UNINFORMATIVE;
+        }
+        return latencySkipReason(legName, timeoutMs);
+    }
+
+    /**
+     * @return why a leg that always has an input (the fallback leg) should not run, or null to run it.
+     */
+    public String latencySkipReason(String legName, long timeoutMs) {
+        return statsFor(legName).tooSlow(timeoutMs) ? TOO_SLOW : null;
+    }
+
+    /**
+     * Drops the celebrities already known to have no face embeddings; unknown ones are kept,
+     * their first face search tells.
+     */
+    public List<String> searchableCelebrities(List<String> celebrities) {
+        List<String> searchable = new ArrayList<>();
+        for (String celeb : celebrities) {
+            List<CelebEmbedding> known = celebEmbeddings.get(embeddingKey(celeb));
+            if (known == null || !known.isEmpty()) {
+                searchable.add(celeb);
+            }
+        }
+        return searchable;
+    }
+
+    /**
+     * Face embeddings of the celebrity, from Weaviate the first time and cached until the data changes.
+     * Only successful lookups are cached, a failed or cancelled one is retried by the next query.
+     * @throws IllegalStateException if Weaviate could not be queried.
+     */
+    public List<CelebEmbedding> getCelebEmbeddings(String celeb) {
+        String key = embeddingKey(celeb);
+        List<CelebEmbedding> embeddings = celebEmbeddings.get(key);
+        if (embeddings == null) {
+            embeddings = CelebFaceSearcher.getEmbeddingsByName(celeb);
+            if (embeddings == null) {
+                throw new IllegalStateException("Failed to load the face embeddings of " + celeb);
+            }
+            // an interrupted lookup may have been cut short
+            if (!Thread.currentThread().isInterrupted()) {
+                celebEmbeddings.put(key, List.copyOf(embeddings));
+            }
+        }
+        return embeddings;
+    }
+
+    public void recordPlan(Map<String, String> plan) {
+        plan.forEach((legName, decision) -> statsFor(legName).recordDecision(decision));
+        lastPlan = new LinkedHashMap<>(plan);
+    }
+
+    public void recordLatency(String legName, long elapsedMs, int resultCount) {
+        statsFor(legName).recordLatency(elapsedMs, resultCount == 0);
+    }
+
+    public void recordTimeout(String legName, long timeoutMs) {
+        statsFor(legName).recordTimeout(timeoutMs);
+    }
+
+    public static boolean isUninformative(String value) {
+        return value == null || value.trim().isEmpty() || value.trim().equalsIgnoreCase("a person");
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Map<String, Object> legs = new LinkedHashMap<>();
+        stats.forEach((legName, legStats) -> legs.put(legName, legStats.toMap()));
+        result.put("legs", legs);
+        result.put("lastPlan", lastPlan);
+        result.put("celebEmbeddingCache", celebEmbeddings.getStats());
+        return result;
+    }
+
+    private LegStats statsFor(String legName) {
+        return stats.computeIfAbsent(legName, name -> new LegStats());
+    }
+
+    private String embeddingKey(String celeb) {
+        return DataVersion.getInstance().current() + "|" + celeb;
+    }
+
+    private static class LegStats {
+        private long runs;
+        private long completed;
+        private long timeouts;
+        private long emptyResults;
+        private long totalMs;
+        private long maxMs;
+        private double ewmaMs = -1;
+        private long slowSkips;
+        private final Map<String, Long> skips = new LinkedHashMap<>();
+
+        synchronized boolean tooSlow(long timeoutMs) {
+            if (ewmaMs < timeoutMs) {
+                return false;
+            }
+            // let every PROBE_INTERVAL-th plan through to measure the leg again
+            slowSkips++;
+            return slowSkips % PROBE_INTERVAL != 0;
+        }
+
+        synchronized void recordDecision(String decision) {
+            if (decision.equals("run")) {
+                runs++;
+            } else {
+                skips.merge(decision, 1L, Long::sum);
+            }
+        }
+
+        synchronized void recordLatency(long elapsedMs, boolean empty) {
+            completed++;
+            totalMs += elapsedMs;
+            maxMs = Math.max(maxMs, elapsedMs);
+            if (empty) {
+                emptyResults++;
+            }
+            updateAverage(elapsedMs);
+        }
+
+        synchronized void recordTimeout(long timeoutMs) {
+            timeouts++;
+            updateAverage(timeoutMs);
+        }
+
+        private void updateAverage(long sampleMs) {
+            ewmaMs = ewmaMs < 0 ? sampleMs : EWMA_ALPHA * sampleMs + (1 - EWMA_ALPHA) * ewmaMs;
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("runs", runs);
+            map.put("skipped", new LinkedHashMap<>(skips));
+            map.put("completed", completed);
+            map.put("timeouts", timeouts);
+            map.put("emptyResults", emptyResults);
+            map.put("meanMs", completed == 0 ? 0 : totalMs / completed);
+            map.put("maxMs", maxMs);
+            map.put("recentMs", ewmaMs < 0 ? 0 : Math.round(ewmaMs));
+            return map;
+        }
+    }
+}
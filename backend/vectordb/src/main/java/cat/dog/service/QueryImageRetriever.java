@@ -2,70 +2,146 @@ package cat.dog.service;
 
 import cat.dog.repository.MemeSearcher;
 import cat.dog.utility.ClipEmbedder ;
+import cat.dog.utility.DataVersion;
+import cat.dog.utility.ImageEmbeddingCache;
+import cat.dog.utility.LruTtlCache;
+import cat.dog.utility.QueryImage;
 import cat.dog.utility.RemoveMemeText;
+import cat.dog.utility.RetrievalConfig;
+import cat.dog.utility.SingleFlight;
 
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class QueryImageRetriever {
     private static final QueryImageRetriever INSTANCE = new QueryImageRetriever();
-    private QueryImageRetriever() {
 
+    // fused rankings, keyed by data version, topK and the content hash of the image (see QueryImage.getContentHash)
+    private final LruTtlCache<String, List<String>> resultCache;
+    // uploads of the same image arriving while it is being searched share that search
+    private final SingleFlight<String, List<String>> inFlight = new SingleFlight<>();
+
+    private QueryImageRetriever() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        this.resultCache = new LruTtlCache<>("imageResults", config.getResultCacheMaxEntries(), config.getResultCacheTtlMs());
     }
     public static QueryImageRetriever getInstance() {
         return INSTANCE;
     }
-    public List<String> retrieveSimilarImages(String imagePath, int topK) {
-        
-        List<String> results = MemeSearcher.searchByImage(imagePath, "MemeImage", null);
-        RemoveMemeText.clean("./received_images/query_image.png", "./received_images/cleaned_query_image.png");
-        List<String> cleanedResults = MemeSearcher.searchByImage("./received_images/cleaned_query_image.png", "MemeImageCleaned", null);
+    public Map<String, Object> getCacheStats() {
+        return resultCache.getStats();
+    }
+    public Map<String, Object> getSingleFlightStats() {
+        return inFlight.getStats();
+    }
+    /**
+     * @param image the uploaded image, owned and closed by the caller; concurrent requests each bring their own.
+     */
+    public List<String> retrieveSimilarImages(QueryImage image, int topK) {
+        String cacheKey = cacheKey(image, topK);
+        if (cacheKey != null) {
+            List<String> cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                System.out.println("Fused image ranking served from cache");
+                return cached;
+            }
+            return inFlight.execute(cacheKey, () -> search(image, topK, cacheKey));
+        }
+        return search(image, topK, null);
+    }
+    private List<String> search(QueryImage image, int topK, String cacheKey) {
+        // text removal and the cleaned search run while the original image is embedded and searched here
+        String contentHash = image.getContentHash();
+        CompletableFuture<List<String>> cleanedLeg = SearchExecutor.getInstance().supply(() ->
+                MemeSearcher.searchByImageVector(cleanedVector(image, contentHash), "MemeImageCleaned", null));
+        List<String> results;
+        List<String> cleanedResults;
+        boolean originalFailed;
+        try {
+            float[] originalVector = originalVector(image, contentHash);
+            originalFailed = originalVector == null;
+            results = originalFailed ? List.of() : MemeSearcher.searchByImageVector(originalVector, "MemeImage", null);
+        } finally {
+            // also on failure: the cleaned leg reads the image, which the caller closes once this returns
+            cleanedResults = awaitCleanedLeg(cleanedLeg);
+        }
+        boolean cleanedFailed = cleanedResults == null;
+        if (cleanedFailed) {
+            cleanedResults = List.of();
+        }
 
         float originalWeight = 0.6f;
         float cleanedWeight = 0.4f;
 
-        Map<String, Float> scoreMap = new HashMap<>();
-        
-        // set all results score to 0
-        for (String res : results) {
-            scoreMap.put(res, 0.0f);
-        }
-        for (String res : cleanedResults) {
-            scoreMap.put(res, 0.0f);
-        }
-
         // accumulate scores = ∑ (weight * rank_score)
-        // rank_score = 1 / (k + rank_index)
+        // rank_score = 1 / (k + rank_index), with rank_index from 0, i.e. RRF k = 29 on 1-based ranks
+        float k = 29.0f;
+        RankFusion fusion = new RankFusion(results.size() + cleanedResults.size());
+        fusion.add(results, originalWeight, k);
+        fusion.add(cleanedResults, cleanedWeight, k);
+        List<String> topResults = fusion.top(topK);
 
-        float k = 30.0f;
-        for (int i = 0; i < results.size(); i++) {
-            String res = results.get(i);
-            float rankScore = 1.0f / (k + i);
-            float accumulatedScore = scoreMap.get(res) + originalWeight * rankScore;
-            scoreMap.put(res, accumulatedScore);
+        // print topK final results
+        System.out.println("Top " + topK + " final results:");
+        for (String res : topResults) {
+            System.out.println("Image: " + res + ", Score: " + fusion.getScore(res) + "\n");
         }
-        for (int i = 0; i < cleanedResults.size(); i++) {
-            String res = cleanedResults.get(i);
-            float rankScore = 1.0f / (k + i);
-            float accumulatedScore = scoreMap.get(res) + cleanedWeight * rankScore;
-            scoreMap.put(res, accumulatedScore);
+        // an empty ranking usually means a vector store call failed, do not pin it, nor one missing a leg
+        if (cacheKey != null && !topResults.isEmpty() && !originalFailed && !cleanedFailed) {
+            resultCache.put(cacheKey, topResults);
         }
-
-        // print all scores in the map
-        for (Map.Entry<String, Float> entry : scoreMap.entrySet()) {
-            System.out.println("Image: " + entry.getKey() + ", Score: " + entry.getValue() + "\n");
+        return topResults;
+    }
+    /**
+     * @return the embedding of the uploaded image, from the embedding cache when this picture was seen before;
+     * null if embedding failed, the original leg then contributes nothing.
+     */
+    private float[] originalVector(QueryImage image, String contentHash) {
+        ImageEmbeddingCache embeddings = ImageEmbeddingCache.getInstance();
+        float[] vector = embeddings.get(contentHash, ImageEmbeddingCache.ORIGINAL);
+        if (vector == null) {
+            vector = ClipEmbedder.embedImageVector(image);
+            embeddings.put(contentHash, ImageEmbeddingCache.ORIGINAL, vector);
         }
-        // sort by score descending
-        List<String> finalResults = scoreMap.entrySet().stream()
-                .sorted((e1, e2) -> Float.compare(e2.getValue(), e1.getValue()))
-                .map(Map.Entry::getKey)
-                .toList();
-        // print topK final results
-        System.out.println("Top " + topK + " final results:");
-        for (int i = 0; i < Math.min(topK, finalResults.size()); i++) {
-            System.out.println("Image: " + finalResults.get(i) + ", Score: " + scoreMap.get(finalResults.get(i)) + "\n");
+        return vector;
+    }
+    /**
+     * @return the embedding of the image with its text removed; a cache hit skips text removal too.
+     * @throws IllegalStateException if embedding the cleaned image failed, so the leg counts as failed.
+     */
+    private float[] cleanedVector(QueryImage image, String contentHash) {
+        ImageEmbeddingCache embeddings = ImageEmbeddingCache.getInstance();
+        float[] vector = embeddings.get(contentHash, ImageEmbeddingCache.CLEANED);
+        if (vector == null) {
+            try (QueryImage cleaned = RemoveMemeText.clean(image)) {
+                vector = ClipEmbedder.embedImageVector(cleaned);
+            }
+            if (vector == null) {
+                throw new IllegalStateException("Failed to embed the cleaned query image");
+            }
+            embeddings.put(contentHash, ImageEmbeddingCache.CLEANED, vector);
+        }
+        return vector;
+    }
+    /**
+     * @return the cleaned leg's ranking, or null if text removal or its embedding failed; the original leg is then fused alone.
+     */
+    private List<String> awaitCleanedLeg(CompletableFuture<List<String>> cleanedLeg) {
+        try {
+            return cleanedLeg.join();
+        } catch (CompletionException e) {
+            System.err.println("Cleaned image leg failed, fusing the original image results only: " + e.getCause());
+            return null;
+        }
+    }
+    private String cacheKey(QueryImage image, int topK) {
+        String hash = image.getContentHash();
+        if (hash == null) {
+            System.out.println("Could not hash query image, skipping the result cache");
+            return null;
         }
-        return finalResults.subList(0, Math.min(topK, finalResults.size()));
+        return DataVersion.getInstance().current() + "|" + topK + "|" + hash;
     }
 }
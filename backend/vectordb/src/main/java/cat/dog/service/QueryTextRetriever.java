@@ -4,158 +4,551 @@ import cat.dog.dto.CelebEmbedding;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 import org.springframework.asm.Label;
 
 import cat.dog.dto.CelebRecord;
 import cat.dog.dto.LabelRecord;
 import cat.dog.dto.MemeFaceRecord;
+import cat.dog.dto.RetrievalResult;
 import cat.dog.repository.CelebFaceSearcher;
 import cat.dog.repository.ElasticSearchDBManager;
 import cat.dog.repository.WeviateExtractedFaceSearcher;
 import cat.dog.repository.MemeSearcher;
 import cat.dog.repository.PostgresDbManager;
+import cat.dog.utility.CelebGazetteer;
+import cat.dog.utility.ClipEmbedder;
+import cat.dog.utility.DataVersion;
 import cat.dog.utility.LLMQueryProcessor;
+import cat.dog.utility.LruTtlCache;
+import cat.dog.utility.QueryAnalysisCache;
+import cat.dog.utility.RetrievalConfig;
+import cat.dog.utility.SingleFlight;
 import cat.dog.repository.ChromaExtractedFaceSearcher;
 
 public class QueryTextRetriever {
+    private static final String FACE_LEG = "Face";
+    private static final String CAPTION_LEG = "Caption";
+    private static final String DESCRIPTIVE_LEG = "Descriptive Text";
+    private static final String FALLBACK_LEG = "Fallback Text";
+    private static final List<String> ALL_LEGS = List.of(FACE_LEG, CAPTION_LEG, DESCRIPTIVE_LEG, FALLBACK_LEG);
+
+    // weight and RRF constant of each leg; the fallback leg uses a larger k to reduce its impact
+    private static final Map<String, Float> LEG_WEIGHTS = Map.of(
+            FACE_LEG, 0.2f, CAPTION_LEG, 0.3f, DESCRIPTIVE_LEG, 0.1f, FALLBACK_LEG, 0.2f);
+    private static final Map<String, Float> LEG_K = Map.of(
+            FACE_LEG, 30.0f, CAPTION_LEG, 30.0f, DESCRIPTIVE_LEG, 30.0f, FALLBACK_LEG, 60.0f);
+    // RRF constant used when merging the face matches of every embedding and every celebrity
+    private static final float FACE_K = 30.0f;
+    // threshold searches can return thousands of faces; deeper ranks barely move the final top 20,
+    // so only this many memes are passed on from each face fusion
+    private static final int FACE_FUSION_DEPTH = 200;
+
     private static QueryTextRetriever INSTANCE = new QueryTextRetriever();
-    private QueryTextRetriever() {
 
+    // complete fused rankings, keyed by data version, topK and normalized query
+    private final LruTtlCache<String, RetrievalResult> resultCache;
+    // identical queries arriving while one is running wait for it instead of starting their own
+    private final SingleFlight<String, RetrievalResult> inFlight = new SingleFlight<>();
+
+    private QueryTextRetriever() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        this.resultCache = new LruTtlCache<>("textResults", config.getResultCacheMaxEntries(), config.getResultCacheTtlMs());
     }
     public static QueryTextRetriever getInstance() {
         return INSTANCE;
     }
+    public Map<String, Object> getCacheStats() {
+        return resultCache.getStats();
+    }
+    public Map<String, Object> getSingleFlightStats() {
+        return inFlight.getStats();
+    }
     public List<String> retrieveSimilarImages(String textQuery, int topK) {
-        PostgresDbManager pgManager = new PostgresDbManager();
-        LLMQueryProcessor llmQueryProcessor = new LLMQueryProcessor();
+        return retrieve(textQuery, topK).getImageNames();
+    }
+    public RetrievalResult retrieve(String textQuery, int topK) {
+        return retrieve(textQuery, topK, null);
+    }
+    /**
+     * Runs the retrieval legs concurrently and fuses their rankings.
+     * If a listener is given, it receives a provisional fused ranking every time a leg finishes.
+     */
+    public RetrievalResult retrieve(String textQuery, int topK, RetrievalListener listener) {
+        String cacheKey = DataVersion.getInstance().current() + "|" + topK + "|" + QueryAnalysisCache.normalize(textQuery);
+        RetrievalResult cached = resultCache.get(cacheKey);
+        if (cached != null) {
+            System.out.println("Fused ranking served from cache for: " + textQuery);
+            return cached;
+        }
+        // a streaming caller needs its own provisional events, everyone else shares an identical running search
+        if (listener != null) {
+            return runRetrieval(textQuery, topK, listener, cacheKey);
+        }
+        return inFlight.execute(cacheKey, () -> runRetrieval(textQuery, topK, null, cacheKey));
+    }
+    private RetrievalResult runRetrieval(String textQuery, int topK, RetrievalListener listener, String cacheKey) {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        LegRun run = new LegRun(topK, listener);
 
         long totalStart = System.currentTimeMillis();
 
+        // the fallback leg (and its text embedding) only needs the raw query, so it runs while the LLM is busy
+        run.startLeg(FALLBACK_LEG, config.getFallbackLegTimeoutMs(), () -> MemeSearcher.searchByText(textQuery, "MemeImage", null));
+
+        // same for the face search of every celebrity the gazetteer already recognizes in the query
+        List<String> gazetteerCelebs = CelebGazetteer.getInstance().findCelebrities(textQuery);
+        System.out.println("Gazetteer celebrities: " + gazetteerCelebs);
+        Map<String, CompletableFuture<List<String>>> celebSearches = new ConcurrentHashMap<>();
+        for (String celeb : gazetteerCelebs) {
+            startCelebSearch(celeb, celebSearches);
+        }
+
+        // with a streamed analysis, each LLM-driven leg starts as soon as the field it needs has arrived
+        LLMQueryProcessor.AnalysisListener onField = (field, value) -> {
+            switch (field) {
+                case "celebrities" -> startFaceLeg(run, extractCelebrities(value), celebSearches);
+                case "caption" -> startCaptionLeg(run, (String) value);
+                case "text" -> startDescriptiveLeg(run, (String) value);
+                default -> { }
+            }
+        };
+
         long start = System.currentTimeMillis();
-        Map<String, Object> processedResult = llmQueryProcessor.processQuery(textQuery);
+        Map<String, Object> processedResult = analyzeQuery(textQuery, onField);
         long end = System.currentTimeMillis();
         System.out.println("LLM Processing took: " + (end - start) + " ms");
 
-        start = System.currentTimeMillis();
-        List<String> imageNamesFaceSearch = retrieveBaseOnFaceMatch(processedResult);
-        end = System.currentTimeMillis();
-        System.out.println("Face Search took: " + (end - start) + " ms");
-
-        start = System.currentTimeMillis();
-        List<String> imageNamesMemeCaptionSearch = retrieveBaseOnCaptionSearch(processedResult);
-        end = System.currentTimeMillis();
-        System.out.println("Caption Search took: " + (end - start) + " ms");
+        // a slow, saturated or failing LLM must not hold the whole request: run the legs on the raw query instead
+        boolean degraded = processedResult.containsKey("error");
+        if (degraded) {
+            System.out.println("LLM unavailable (" + processedResult.get("error") + "), running in degraded mode.");
+            run.markDegraded();
+        }
 
-        start = System.currentTimeMillis();
-        String text = (String) processedResult.get("text");
-        List<String> imageNamesDescriptiveTextSearch = MemeSearcher.searchByText(text, "MemeImageCleaned", null);
-        end = System.currentTimeMillis();
+        // start the legs whose field was not streamed; the LLM has the final say on celebrities,
+        // without it the gazetteer matches are used
+        if (!run.isPlanned(FACE_LEG)) {
+            List<String> celebrities = degraded ? gazetteerCelebs : extractCelebrities(processedResult.get("celebrities"));
+            startFaceLeg(run, celebrities, celebSearches);
+        }
+        if (!run.isPlanned(CAPTION_LEG)) {
+            startCaptionLeg(run, degraded ? textQuery : (String) processedResult.get("caption"));
+        }
+        if (!run.isPlanned(DESCRIPTIVE_LEG)) {
+            startDescriptiveLeg(run, degraded ? textQuery : (String) processedResult.get("text"));
+        }
 
-        start = System.currentTimeMillis();
-        List<String> fallbackDescriptiveTextSearch = MemeSearcher.searchByText(textQuery, "MemeImage", null);
-        end = System.currentTimeMillis();
-        // combine both descriptive text search results
-        System.out.println("Descriptive Text Search took: " + (end - start) + " ms");
+        // fuse whatever finished within its budget, the rest is reported as missing
+        Map<String, List<String>> legResults = run.awaitAll();
+        celebSearches.values().forEach(search -> search.cancel(true));
 
         long totalEnd = System.currentTimeMillis();
         System.out.println("Total retrieveSimilarImages execution time: " + (totalEnd - totalStart) + " ms");
+        if (!run.getMissingLegs().isEmpty()) {
+            System.out.println("Partial results, missing legs: " + run.getMissingLegs());
+        }
 
         // [Debug] Print intermediate results
-        System.out.println("Face Search Results:");
-        for (String imageName : imageNamesFaceSearch) {
-            System.out.println(imageName);
+        for (Map.Entry<String, List<String>> leg : legResults.entrySet()) {
+            System.out.println(leg.getKey() + " Search Results:");
+            for (String imageName : leg.getValue()) {
+                System.out.println(imageName);
+            }
         }
-        System.out.println("Caption Search Results:");
-        for (String imageName : imageNamesMemeCaptionSearch) {
+
+        List<String> finalResults = fuseLegs(legResults, topK);
+
+        // print final results
+        System.out.println("Final Retrieved Images:");
+        for (String imageName : finalResults) {
             System.out.println(imageName);
         }
-        System.out.println("Descriptive Text Search Results:");
-        for (String imageName : imageNamesDescriptiveTextSearch) {
-            System.out.println(imageName);
+        RetrievalResult result = new RetrievalResult(finalResults, run.getMissingLegs(), degraded);
+        // partial or degraded rankings are not worth repeating, the next request may do better
+        if (!result.isPartial() && !result.isDegraded()) {
+            resultCache.put(cacheKey, result);
         }
-        System.out.println("Fallback Descriptive Text Search Results:");
-        for (String imageName : fallbackDescriptiveTextSearch) {
-            System.out.println(imageName);
+        return result;
+    }
+    /**
+     * Searches many queries at once for batch jobs. Identical queries run once, the LLM analyses and the
+     * text embeddings are requested from the Python server in batches, and each celebrity's face search
+     * runs once for the whole batch. Every result is handed to onResult with the query's position as soon
+     * as it is ready, so results arrive out of order.
+     */
+    public void retrieveBatch(List<String> textQueries, int topK, BiConsumer<Integer, RetrievalResult> onResult) {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        long totalStart = System.currentTimeMillis();
+
+        // 1. identical queries share one search, cached rankings are answered right away
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        Map<String, String> queries = new LinkedHashMap<>();
+        for (int i = 0; i < textQueries.size(); i++) {
+            String cacheKey = DataVersion.getInstance().current() + "|" + topK + "|" + QueryAnalysisCache.normalize(textQueries.get(i));
+            positions.computeIfAbsent(cacheKey, key -> new ArrayList<>()).add(i);
+            queries.putIfAbsent(cacheKey, textQueries.get(i));
+        }
+        List<String> cacheKeys = new ArrayList<>();
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            RetrievalResult cached = resultCache.get(query.getKey());
+            if (cached != null) {
+                positions.get(query.getKey()).forEach(position -> onResult.accept(position, cached));
+            } else {
+                cacheKeys.add(query.getKey());
+            }
+        }
+        System.out.println("Batch of " + textQueries.size() + " queries: " + queries.size() + " distinct, "
+                + cacheKeys.size() + " not cached");
+        if (cacheKeys.isEmpty()) {
+            return;
         }
 
-        // if the text from processedResult is empty or contains only "a person", clear the descriptive text search results
-        if (text == null || text.trim().isEmpty() || text.trim().equalsIgnoreCase("a person")) {
-            imageNamesDescriptiveTextSearch.clear();
-        }
-        // if the caption from processedResult is empty or contains only "a person", clear the caption search results
-        String caption = (String) processedResult.get("caption");
-        if (caption == null || caption.trim().isEmpty() || caption.trim().equalsIgnoreCase("a person")) {
-            imageNamesMemeCaptionSearch.clear();
-        }
-
-        // weighted merging of results
-        float faceWeight = 0.2f;
-        float captionWeight = 0.3f;
-        float textWeight = 0.1f;
-        float fallbackTextWeight = 0.2f;
-        Map<String, Float> finalImageScores = new HashMap<>();
-        for (int i = 0; i < imageNamesFaceSearch.size(); i++) {
-            String imageName = imageNamesFaceSearch.get(i);
-            float k = 30.0f;
-            float score = faceWeight * (1.0f / (k + i + 1));
-            boolean exists = finalImageScores.containsKey(imageName);
-            if (!exists) {
-                finalImageScores.put(imageName, 0.0f);
+        // 2. analyses in batches
+        List<String> misses = new ArrayList<>();
+        cacheKeys.forEach(key -> misses.add(queries.get(key)));
+        List<Map<String, Object>> analyses = new LLMQueryProcessor().processQueries(misses);
+
+        // 3. every distinct text that needs an embedding, embedded in batches
+        Set<String> texts = new LinkedHashSet<>();
+        for (int i = 0; i < misses.size(); i++) {
+            texts.add(misses.get(i));
+            String descriptive = analyses.get(i).containsKey("error") ? misses.get(i) : (String) analyses.get(i).get("text");
+            if (!LegPlanner.isUninformative(descriptive)) {
+                texts.add(descriptive);
             }
-            float accumulatedScore = finalImageScores.get(imageName) + score;
-            finalImageScores.put(imageName, accumulatedScore);
-        }
-        for (int i = 0; i < imageNamesMemeCaptionSearch.size(); i++) {
-            String imageName = imageNamesMemeCaptionSearch.get(i);
-            float k = 30.0f;
-            float score = captionWeight * (1.0f / (k + i + 1));
-            boolean exists = finalImageScores.containsKey(imageName);
-            if (!exists) {
-                finalImageScores.put(imageName, 0.0f);
+        }
+        Map<String, String> vectors = embedTexts(new ArrayList<>(texts), config.getBatchEmbedSize());
+
+        // 4. legs of every query, with a bounded number of queries in flight; face searches are shared
+        Map<String, CompletableFuture<List<String>>> celebSearches = new ConcurrentHashMap<>();
+        Semaphore slots = new Semaphore(Math.max(1, config.getBatchSearchParallelism()));
+        List<CompletableFuture<Void>> searches = new ArrayList<>();
+        try {
+            for (int i = 0; i < misses.size(); i++) {
+                String textQuery = misses.get(i);
+                String cacheKey = cacheKeys.get(i);
+                Map<String, Object> analysis = analyses.get(i);
+                slots.acquire();
+                CompletableFuture<Void> search = SearchExecutor.getInstance().supply(() -> {
+                    try {
+                        RetrievalResult result = runBatchedRetrieval(textQuery, topK, analysis, vectors, celebSearches);
+                        if (!result.isPartial() && !result.isDegraded()) {
+                            resultCache.put(cacheKey, result);
+                        }
+                        positions.get(cacheKey).forEach(position -> onResult.accept(position, result));
+                    } catch (Exception e) {
+                        System.err.println("Batch search failed for \"" + textQuery + "\": " + e.getMessage());
+                        RetrievalResult failed = new RetrievalResult(new ArrayList<>(), new ArrayList<>(ALL_LEGS), true);
+                        positions.get(cacheKey).forEach(position -> onResult.accept(position, failed));
+                    } finally {
+                        slots.release();
+                    }
+                    return null;
+                });
+                searches.add(search);
             }
-            float accumulatedScore = finalImageScores.get(imageName) + score;
-            finalImageScores.put(imageName, accumulatedScore);
-        }
-        for (int i = 0; i < imageNamesDescriptiveTextSearch.size(); i++) {
-            String imageName = imageNamesDescriptiveTextSearch.get(i);
-            float k = 30.0f;
-            float score = textWeight * (1.0f / (k + i + 1));
-            boolean exists = finalImageScores.containsKey(imageName);
-            if (!exists) {
-                finalImageScores.put(imageName, 0.0f);
+            CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[0])).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            searches.forEach(search -> search.cancel(true));
+            throw new RuntimeException("Batch search interrupted", e);
+        } finally {
+            celebSearches.values().forEach(search -> search.cancel(true));
+        }
+        System.out.println("Batch of " + textQueries.size() + " queries took " + (System.currentTimeMillis() - totalStart) + " ms");
+    }
+    private RetrievalResult runBatchedRetrieval(String textQuery, int topK, Map<String, Object> analysis,
+                                                Map<String, String> vectors, Map<String, CompletableFuture<List<String>>> celebSearches) {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        LegRun run = new LegRun(topK, null);
+        boolean degraded = analysis.containsKey("error");
+        if (degraded) {
+            run.markDegraded();
+        }
+
+        run.startLeg(FALLBACK_LEG, config.getFallbackLegTimeoutMs(), () -> searchByVector(textQuery, vectors, "MemeImage"));
+
+        // the same rules as a single query: without the LLM, the gazetteer decides and the raw query is searched
+        List<String> celebrities = degraded
+                ? CelebGazetteer.getInstance().findCelebrities(textQuery)
+                : extractCelebrities(analysis.get("celebrities"));
+        // face searches are shared by the whole batch, so nothing is cancelled here
+        List<String> searchable = planFaceLeg(run, celebrities);
+        if (searchable != null) {
+            run.startLeg(FACE_LEG, config.getFaceLegTimeoutMs(), () -> retrieveBaseOnFaceMatch(searchable, celebSearches));
+        }
+        startCaptionLeg(run, degraded ? textQuery : (String) analysis.get("caption"));
+        String descriptive = degraded ? textQuery : (String) analysis.get("text");
+        String skip = LegPlanner.getInstance().skipReason(DESCRIPTIVE_LEG, descriptive, config.getDescriptiveLegTimeoutMs());
+        if (skip != null) {
+            run.skipLeg(DESCRIPTIVE_LEG, skip);
+        } else {
+            run.startLeg(DESCRIPTIVE_LEG, config.getDescriptiveLegTimeoutMs(),
+                    () -> searchByVector(descriptive, vectors, "MemeImageCleaned"));
+        }
+
+        Map<String, List<String>> legResults = run.awaitAll();
+        return new RetrievalResult(fuseLegs(legResults, topK), run.getMissingLegs(), degraded);
+    }
+    private Map<String, String> embedTexts(List<String> texts, int batchSize) {
+        Map<String, String> vectors = new HashMap<>();
+        batchSize = Math.max(1, batchSize);
+        for (int start = 0; start < texts.size(); start += batchSize) {
+            List<String> chunk = texts.subList(start, Math.min(start + batchSize, texts.size()));
+            List<String> embedded = ClipEmbedder.embedTextBatch(chunk);
+            if (embedded == null || embedded.size() != chunk.size()) {
+                System.err.println("Batch embedding of " + chunk.size() + " texts failed, they will be embedded one by one.");
+                continue;
             }
-            float accumulatedScore = finalImageScores.get(imageName) + score;
-            finalImageScores.put(imageName, accumulatedScore);
-        }
-        for (int i = 0; i < fallbackDescriptiveTextSearch.size(); i++) {
-            String imageName = fallbackDescriptiveTextSearch.get(i);
-            float k = 60.0f; // use a larger k to reduce the impact of fallback search
-            float score = fallbackTextWeight * (1.0f / (k + i + 1));
-            boolean exists = finalImageScores.containsKey(imageName);
-            if (!exists) {
-                finalImageScores.put(imageName, 0.0f);
+            for (int j = 0; j < chunk.size(); j++) {
+                vectors.put(chunk.get(j), embedded.get(j));
             }
-            float accumulatedScore = finalImageScores.get(imageName) + score;
-            finalImageScores.put(imageName, accumulatedScore);
-        }
-        List<String> finalResults = finalImageScores.entrySet().stream()
-                .sorted((e1, e2) -> Float.compare(e2.getValue(), e1.getValue()))
-                .map(Map.Entry::getKey)
-                .limit(topK).toList();
-        
-        // print final results
-        System.out.println("Final Retrieved Images:");
-        for (String imageName : finalResults) {
-            System.out.println(imageName);
         }
-        return finalResults;
+        return vectors;
     }
-    private List<String> retrieveBaseOnCaptionSearch(Map<String,Object> processedResult) {
+    private static List<String> searchByVector(String text, Map<String, String> vectors, String classString) {
+        String vector = vectors.get(text);
+        if (vector == null) {
+            return MemeSearcher.searchByText(text, classString, null);
+        }
+        return MemeSearcher.searchByVector(vector, classString, null);
+    }
+    private Map<String, Object> analyzeQuery(String textQuery, LLMQueryProcessor.AnalysisListener onField) {
+        LLMQueryProcessor llmQueryProcessor = new LLMQueryProcessor();
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        if (!config.isLlmStreaming()) {
+            return llmQueryProcessor.processQuery(textQuery);
+        }
+        // the request timeout only covers the response headers of a stream, so the whole analysis is bounded here
+        CompletableFuture<Map<String, Object>> analysis = SearchExecutor.getInstance()
+                .supply(() -> llmQueryProcessor.processQueryStreaming(textQuery, onField));
+        Map<String, Object> errorMap = new HashMap<>();
+        try {
+            return analysis.get(config.getLlmTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            errorMap.put("error", "LLM analysis exceeded its " + config.getLlmTimeoutMs() + " ms budget");
+        } catch (ExecutionException e) {
+            errorMap.put("error", "LLM analysis failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errorMap.put("error", "LLM analysis interrupted");
+        }
+        analysis.cancel(true);
+        return errorMap;
+    }
+    /**
+     * Asks the planner whether the face leg can contribute.
+     * @return the celebrities worth a face search, or null if the leg was skipped.
+     */
+    private List<String> planFaceLeg(LegRun run, List<String> celebrities) {
+        LegPlanner planner = LegPlanner.getInstance();
+        List<String> searchable = planner.searchableCelebrities(celebrities);
+        String skip = celebrities.isEmpty() ? LegPlanner.NO_CELEBRITIES
+                : searchable.isEmpty() ? LegPlanner.NO_FACE_EMBEDDINGS
+                : planner.latencySkipReason(FACE_LEG, RetrievalConfig.getInstance().getFaceLegTimeoutMs());
+        if (skip != null) {
+            run.skipLeg(FACE_LEG, skip);
+            return null;
+        }
+        return searchable;
+    }
+    private void startFaceLeg(LegRun run, List<String> celebrities, Map<String, CompletableFuture<List<String>>> celebSearches) {
+        List<String> searchable = planFaceLeg(run, celebrities);
+        // gazetteer matches that are not among the searched celebrities are not worth finishing
+        Set<String> confirmed = new HashSet<>();
+        for (String celeb : searchable == null ? List.<String>of() : searchable) {
+            confirmed.add(CelebGazetteer.normalize(celeb));
+        }
+        celebSearches.forEach((key, search) -> {
+            if (!confirmed.contains(key)) {
+                search.cancel(true);
+            }
+        });
+        if (searchable == null) {
+            return;
+        }
+        run.startLeg(FACE_LEG, RetrievalConfig.getInstance().getFaceLegTimeoutMs(),
+                () -> retrieveBaseOnFaceMatch(searchable, celebSearches));
+    }
+    private void startCaptionLeg(LegRun run, String caption) {
+        long timeoutMs = RetrievalConfig.getInstance().getCaptionLegTimeoutMs();
+        // an empty or "a person" caption cannot match anything, the search is not sent at all
+        String skip = LegPlanner.getInstance().skipReason(CAPTION_LEG, caption, timeoutMs);
+        if (skip != null) {
+            run.skipLeg(CAPTION_LEG, skip);
+            return;
+        }
+        run.startLeg(CAPTION_LEG, timeoutMs, () -> retrieveBaseOnCaptionSearch(caption));
+    }
+    private void startDescriptiveLeg(LegRun run, String text) {
+        long timeoutMs = RetrievalConfig.getInstance().getDescriptiveLegTimeoutMs();
+        String skip = LegPlanner.getInstance().skipReason(DESCRIPTIVE_LEG, text, timeoutMs);
+        if (skip != null) {
+            run.skipLeg(DESCRIPTIVE_LEG, skip);
+            return;
+        }
+        run.startLeg(DESCRIPTIVE_LEG, timeoutMs, () -> MemeSearcher.searchByText(text, "MemeImageCleaned", null));
+    }
+    // weighted merging of results: score = ∑ weight * 1 / (k + rank)
+    private static List<String> fuseLegs(Map<String, List<String>> legResults, int topK) {
+        RankFusion fusion = new RankFusion();
+        for (Map.Entry<String, List<String>> leg : legResults.entrySet()) {
+            fusion.add(leg.getValue(), LEG_WEIGHTS.get(leg.getKey()), LEG_K.get(leg.getKey()));
+        }
+        return fusion.top(topK);
+    }
+    /**
+     * The legs of a single query: their futures, deadlines and the rankings that already came back.
+     */
+    private static class LegRun {
+        private final int topK;
+        private final RetrievalListener listener;
+        private final Map<String, CompletableFuture<List<String>>> legs = new LinkedHashMap<>();
+        private final Map<String, Long> deadlines = new HashMap<>();
+        private final Map<String, List<String>> finished = new LinkedHashMap<>();
+        private final List<String> missingLegs = new ArrayList<>();
+        private final List<String> expectedLegs = new ArrayList<>(ALL_LEGS);
+        private final Map<String, Long> budgets = new HashMap<>();
+        // leg -> "run" or the planner's reason for skipping it
+        private final Map<String, String> plan = new LinkedHashMap<>();
+        private boolean degraded = false;
+        private boolean closed = false;
+        // the listener runs outside the run's lock, one call at a time and never with an older snapshot than the last one
+        private final Object listenerLock = new Object();
+        private long snapshots = 0;
+        private long delivered = 0;
+
+        LegRun(int topK, RetrievalListener listener) {
+            this.topK = topK;
+            this.listener = listener;
+        }
+
+        synchronized void markDegraded() {
+            degraded = true;
+        }
+
+        synchronized void skipLeg(String legName, String reason) {
+            if (closed || legs.containsKey(legName)) return;
+            expectedLegs.remove(legName);
+            plan.put(legName, reason);
+            // only the data can rule a leg out; skipped for its latency, the leg is missing like a timed out one
+            if (LegPlanner.TOO_SLOW.equals(reason)) {
+                missingLegs.add(legName);
+            }
+        }
+
+        // true once the leg was either started or skipped
+        synchronized boolean isPlanned(String legName) {
+            return plan.containsKey(legName);
+        }
+
+        // a leg starts only once, whether from a streamed field or after the analysis
+        synchronized void startLeg(String legName, long timeoutMs, Supplier<List<String>> leg) {
+            if (closed || legs.containsKey(legName) || !expectedLegs.contains(legName)) return;
+            long legStart = System.currentTimeMillis();
+            deadlines.put(legName, legStart + timeoutMs);
+            budgets.put(legName, timeoutMs);
+            plan.put(legName, "run");
+            CompletableFuture<List<String>> future = SearchExecutor.getInstance().supply(() -> {
+                List<String> result = leg.get();
+                long elapsed = System.currentTimeMillis() - legStart;
+                System.out.println(legName + " Search took: " + elapsed + " ms");
+                LegPlanner.getInstance().recordLatency(legName, elapsed, result.size());
+                return result;
+            });
+            legs.put(legName, future);
+            future.thenAccept(result -> onLegFinished(legName, result));
+        }
+
+        private void onLegFinished(String legName, List<String> result) {
+            Map<String, List<String>> finishedSnapshot;
+            List<String> pending;
+            boolean degradedSnapshot;
+            long snapshot;
+            synchronized (this) {
+                // legs finishing after the final fusion are dropped
+                if (closed) return;
+                finished.put(legName, new ArrayList<>(result));
+                if (listener == null) return;
+                finishedSnapshot = new LinkedHashMap<>(finished);
+                pending = new ArrayList<>(expectedLegs);
+                pending.removeAll(finished.keySet());
+                degradedSnapshot = degraded;
+                snapshot = ++snapshots;
+            }
+            // a slow client or image lookup in the listener must not hold up starting or finishing other legs
+            RetrievalResult progress = new RetrievalResult(fuseLegs(finishedSnapshot, topK), pending, degradedSnapshot);
+            synchronized (listenerLock) {
+                synchronized (this) {
+                    if (closed || snapshot <= delivered) return;
+                    delivered = snapshot;
+                }
+                listener.onProgress(progress);
+            }
+        }
+
+        Map<String, List<String>> awaitAll() {
+            Map<String, CompletableFuture<List<String>>> started;
+            synchronized (this) {
+                started = new LinkedHashMap<>(legs);
+            }
+            Map<String, List<String>> legResults = new LinkedHashMap<>();
+            for (String legName : ALL_LEGS) {
+                if (started.containsKey(legName)) {
+                    legResults.put(legName, awaitLeg(legName, started.get(legName)));
+                }
+            }
+            // waits for a progress call in flight, so none is delivered after the final result
+            synchronized (listenerLock) {
+                synchronized (this) {
+                    closed = true;
+                    System.out.println("Leg plan: " + plan);
+                    LegPlanner.getInstance().recordPlan(plan);
+                }
+            }
+            return legResults;
+        }
+
+        private List<String> awaitLeg(String legName, CompletableFuture<List<String>> future) {
+            long remaining = deadlines.get(legName) - System.currentTimeMillis();
+            try {
+                return new ArrayList<>(future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                System.err.println(legName + " Search missed its deadline, fusing without it.");
+                LegPlanner.getInstance().recordTimeout(legName, budgets.get(legName));
+            } catch (ExecutionException e) {
+                System.err.println(legName + " Search failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            future.cancel(true);
+            synchronized (this) {
+                missingLegs.add(legName);
+            }
+            return new ArrayList<>();
+        }
+
+        synchronized List<String> getMissingLegs() {
+            return new ArrayList<>(missingLegs);
+        }
+    }
+    private List<String> retrieveBaseOnCaptionSearch(String caption) {
         PostgresDbManager pgManager = new PostgresDbManager();
-        String caption = (String) processedResult.get("caption");
             // System.out.println("Caption: " + caption);
             ElasticSearchDBManager dbManager = ElasticSearchDBManager.getInstance();
             List<Map.Entry<Integer, String>> searchResults = dbManager.fuzzySearchCaptions(caption, 5.0f);
@@ -170,9 +563,8 @@ public class QueryTextRetriever {
             }
         return imageNamesCaptionSearch;
     }
-    private List<String> retrieveBaseOnFaceMatch(Map<String, Object> processedResult) {
+    private List<String> extractCelebrities(Object celebObj) {
         List<String> celebrities = new ArrayList<>();
-        Object celebObj = processedResult.get("celebrities");
         if (celebObj instanceof List<?>) {
             for (Object item : (List<?>) celebObj) {
                 if (item instanceof String) {
@@ -180,75 +572,62 @@ public class QueryTextRetriever {
                 }
             }
         }
-
-        List<List<String>> allResults = new ArrayList<>();
-        Map<String, Float> finalMemeScore = new HashMap<>();
+        return celebrities;
+    }
+    private CompletableFuture<List<String>> startCelebSearch(String celeb, Map<String, CompletableFuture<List<String>>> celebSearches) {
+        return celebSearches.computeIfAbsent(CelebGazetteer.normalize(celeb),
+                key -> SearchExecutor.getInstance().supply(() -> searchMemesByCeleb(celeb)));
+    }
+    private List<String> retrieveBaseOnFaceMatch(List<String> celebrities, Map<String, CompletableFuture<List<String>>> celebSearches) {
+        // searches already started from the gazetteer are reused, the others start now and run side by side
+        List<CompletableFuture<List<String>>> searches = new ArrayList<>();
         for (String celeb : celebrities) {
-            // System.out.println("Celebrity: " + celeb);
-            // Count time taken to search embeddings for this celebrity
-            long startTime = System.currentTimeMillis();
-            List<CelebEmbedding> celebEmbeddings = CelebFaceSearcher.getEmbeddingsByName(celeb);
-            long endTime = System.currentTimeMillis();
-            System.out.println("Time taken to search embeddings for " + celeb + ": " + (endTime - startTime) + " ms");
-            //
-            System.out.println("Found " + celebEmbeddings.size() + " embeddings for celebrity: " + celeb);
-            List<List<MemeFaceRecord>> allFaces = new ArrayList<>();
-            // Count time taken to search faces for all embeddings
-            long faceSearchStartTime = System.currentTimeMillis();
-            for (CelebEmbedding embedding : celebEmbeddings) {
-                // System.out.println("Found embedding for: " + embedding.getCelebName() + " at " + embedding.getImagePath());
-                // search similar faces in weaviate using the embedding vector
-                List<MemeFaceRecord> faces = WeviateExtractedFaceSearcher.searchFaceWithEmbeddingByThreshold(embedding.getEmbedding(), 0.92f);
-                // List<MemeFaceRecord> faces = ChromaExtractedFaceSearcher.searchFaceWithEmbedding(embedding.getEmbedding(), 10);
-                allFaces.add(faces);
-            }
-            long faceSearchEndTime = System.currentTimeMillis();
-            System.out.println("Time taken to search faces for all embeddings of " + celeb + ": " + (faceSearchEndTime - faceSearchStartTime) + " ms");
-            //
-            Map<String, Float> memeScore = new HashMap<>();
-            for (List<MemeFaceRecord> faceList : allFaces) {
-                for (MemeFaceRecord face : faceList) {
-                    // check if memeName is already in memeScore
-                    boolean exists = memeScore.containsKey(face.getMemeName());
-                    if (!exists) {
-                        memeScore.put(face.getMemeName(), 0.0f);
-                    }
-                }
-            }
-            for (List<MemeFaceRecord> faceList : allFaces) {
-                for (int i = 0; i < faceList.size(); i++) {
-                    float k = 30.0f;
-                    float score = 1.0f / (k + i + 1);
-                    MemeFaceRecord face = faceList.get(i);
-                    float accumulatedScore = memeScore.get(face.getMemeName()) + score;
-                    memeScore.put(face.getMemeName(), accumulatedScore);
-                }
+            searches.add(startCelebSearch(celeb, celebSearches));
+        }
+
+        RankFusion fusion = new RankFusion();
+        for (int c = 0; c < searches.size(); c++) {
+            try {
+                fusion.add(searches.get(c).get(), 1.0f, FACE_K);
+            } catch (ExecutionException e) {
+                System.err.println("Face search failed for " + celebrities.get(c) + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                // the face leg missed its deadline
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Face search interrupted", e);
             }
-            List<String> singleCelebResult = memeScore.entrySet().stream()
-                .sorted((e1, e2) -> Float.compare(e2.getValue(), e1.getValue()))
-                .map(Map.Entry::getKey)
-                .toList();
-
-            allResults.add(singleCelebResult);
-        }
-        for (List<String> resultList : allResults) {
-            for (int i = 0; i < resultList.size(); i++) {
-                String memeName = resultList.get(i);
-                float k = 30.0f;
-                float score = 1.0f / (k + i + 1);
-                boolean exists = finalMemeScore.containsKey(memeName);
-                if (!exists) {
-                    finalMemeScore.put(memeName, 0.0f);
-                }
-                float accumulatedScore = finalMemeScore.get(memeName) + score;
-                finalMemeScore.put(memeName, accumulatedScore);
+        }
+        return fusion.top(FACE_FUSION_DEPTH);
+    }
+    private List<String> searchMemesByCeleb(String celeb) {
+        // System.out.println("Celebrity: " + celeb);
+        // Count time taken to search embeddings for this celebrity
+        long startTime = System.currentTimeMillis();
+        List<CelebEmbedding> celebEmbeddings = LegPlanner.getInstance().getCelebEmbeddings(celeb);
+        long endTime = System.currentTimeMillis();
+        System.out.println("Time taken to search embeddings for " + celeb + ": " + (endTime - startTime) + " ms");
+        //
+        System.out.println("Found " + celebEmbeddings.size() + " embeddings for celebrity: " + celeb);
+        List<List<MemeFaceRecord>> allFaces = new ArrayList<>();
+        // Count time taken to search faces for all embeddings
+        long faceSearchStartTime = System.currentTimeMillis();
+        for (CelebEmbedding embedding : celebEmbeddings) {
+            // System.out.println("Found embedding for: " + embedding.getCelebName() + " at " + embedding.getImagePath());
+            // search similar faces in weaviate using the embedding vector
+            List<MemeFaceRecord> faces = WeviateExtractedFaceSearcher.searchFaceWithEmbeddingByThreshold(embedding.getEmbedding(), 0.92f);
+            // List<MemeFaceRecord> faces = ChromaExtractedFaceSearcher.searchFaceWithEmbedding(embedding.getEmbedding(), 10);
+            allFaces.add(faces);
+        }
+        long faceSearchEndTime = System.currentTimeMillis();
+        System.out.println("Time taken to search faces for all embeddings of " + celeb + ": " + (faceSearchEndTime - faceSearchStartTime) + " ms");
+        //
+        RankFusion fusion = new RankFusion();
+        for (List<MemeFaceRecord> faceList : allFaces) {
+            for (int i = 0; i < faceList.size(); i++) {
+                fusion.add(faceList.get(i).getMemeName(), i + 1, 1.0f, FACE_K);
             }
         }
-        List<String> finalResults = finalMemeScore.entrySet().stream()
-                .sorted((e1, e2) -> Float.compare(e2.getValue(), e1.getValue()))
-                .map(Map.Entry::getKey)
-                .toList();
-        return finalResults;
+        return fusion.top(FACE_FUSION_DEPTH);
     }
     public static void main(String[] args) {
         QueryTextRetriever retriever = QueryTextRetriever.getInstance();
@@ -0,0 +1,145 @@
+package cat.dog.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Weighted reciprocal rank fusion: score(doc) = ∑ weight * 1 / (k + rank), rank starting at 1.
+ * Image names are interned to int ids on first sight so scores accumulate in a primitive array,
+ * and only the best topK ids are kept in a bounded heap instead of sorting every candidate.
+ * One instance fuses one set of rankings and is not thread safe.
+ */
+public class RankFusion {
+    private final Map<String, Integer> ids;
+    private String[] names;
+    private float[] scores;
+    private int size;
+
+    public RankFusion() {
+        this(64);
+    }
+
+    public RankFusion(int expectedDocs) {
+        int capacity = Math.max(expectedDocs, 16);
+        this.ids = new HashMap<>(capacity * 4 / 3 + 1);
+        this.names = new String[capacity];
+        this.scores = new float[capacity];
+    }
+
+    /**
+     * Adds a ranking, best first, to the fusion.
+     */
+    public RankFusion add(List<String> ranking, float weight, float k) {
+        for (int i = 0; i < ranking.size(); i++) {
+            add(ranking.get(i), i + 1, weight, k);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a single document at the given 1-based rank, for callers that build the ranking on the fly.
+     */
+    public void add(String doc, int rank, float weight, float k) {
+        // intern first, it may replace the scores array
+        int id = intern(doc);
+        scores[id] += weight / (k + rank);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the fused score of the document, 0 if it was never ranked.
+     */
+    public float getScore(String doc) {
+        Integer id = ids.get(doc);
+        return id == null ? 0.0f : scores[id];
+    }
+
+    /**
+     * @return the topK documents by fused score, best first. Ties keep the order in which documents were first seen.
+     */
+    public List<String> top(int topK) {
+        int limit = Math.min(topK, size);
+        if (limit <= 0) {
+            return List.of();
+        }
+        // min-heap of the best ids seen so far, the weakest one at the root
+        int[] heap = new int[limit];
+        int heapSize = 0;
+        for (int id = 0; id < size; id++) {
+            if (heapSize < limit) {
+                heap[heapSize] = id;
+                siftUp(heap, heapSize++);
+            } else if (ranksBelow(heap[0], id)) {
+                heap[0] = id;
+                siftDown(heap, heapSize);
+            }
+        }
+        String[] best = new String[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            best[i] = names[heap[0]];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize);
+        }
+        return List.of(best);
+    }
+
+    private int intern(String doc) {
+        Integer id = ids.get(doc);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            scores = Arrays.copyOf(scores, size * 2);
+        }
+        names[size] = doc;
+        ids.put(doc, size);
+        return size++;
+    }
+
+    // true if a ranks below b: a lower score, or the same score but seen later
+    private boolean ranksBelow(int a, int b) {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+    }
+
+    private void siftUp(int[] heap, int index) {
+        int id = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!ranksBelow(id, heap[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = id;
+    }
+
+    private void siftDown(int[] heap, int heapSize) {
+        if (heapSize == 0) {
+            return;
+        }
+        int index = 0;
+        int id = heap[0];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && ranksBelow(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!ranksBelow(heap[child], id)) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = id;
+    }
+}
@@ -0,0 +1,68 @@
+package cat.dog.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+
+import cat.dog.dto.RetrievalResult;
+import cat.dog.utility.LruTtlCache;
+import cat.dog.utility.RetrievalConfig;
+
+/**
+ * Keeps the full fused ranking of a search server-side so clients can page through it
+ * without re-running any retrieval leg. Sessions are bounded in number and expire after a TTL.
+ * A cursor is an opaque token naming a session and the offset of the next page.
+ */
+public class RankingSessionStore {
+    private static final RankingSessionStore INSTANCE = new RankingSessionStore();
+
+    private final LruTtlCache<String, RetrievalResult> sessions;
+
+    private RankingSessionStore() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        this.sessions = new LruTtlCache<>("rankingSessions", config.getSessionMaxEntries(), config.getSessionTtlMs());
+    }
+
+    public static RankingSessionStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Stores the ranking and returns the id of its session.
+     */
+    public String open(RetrievalResult ranking) {
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put(sessionId, ranking);
+        return sessionId;
+    }
+
+    /**
+     * @return the ranking of the session, or null if it expired or was evicted.
+     */
+    public RetrievalResult get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public static String encodeCursor(String sessionId, int offset) {
+        String raw = sessionId + ":" + offset;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return {sessionId, offset} of the cursor.
+     * @throws IllegalArgumentException if the cursor is malformed.
+     */
+    public static String[] decodeCursor(String cursor) {
+        String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        int separator = raw.lastIndexOf(':');
+        if (separator <= 0 || Integer.parseInt(raw.substring(separator + 1)) < 0) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        return new String[] { raw.substring(0, separator), raw.substring(separator + 1) };
+    }
+
+    public Map<String, Object> getStats() {
+        return sessions.getStats();
+    }
+}
@@ -0,0 +1,12 @@
+package cat.dog.service;
+
+import cat.dog.dto.RetrievalResult;
+
+/**
+ * Receives the provisional rankings of a query while its retrieval legs are still running.
+ */
+@FunctionalInterface
+public interface RetrievalListener {
+    // called each time a leg finishes; missing legs of the result are the ones still pending
+    void onProgress(RetrievalResult provisional);
+}
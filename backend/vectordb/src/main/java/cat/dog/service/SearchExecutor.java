@@ -0,0 +1,53 @@
+package cat.dog.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Shared pool that runs the retrieval legs of a query.
+ * The legs are blocking HTTP calls to Weaviate, Elasticsearch and the Python server,
+ * so threads are cheap to park and the pool grows with demand.
+ */
+public class SearchExecutor {
+    private static final SearchExecutor INSTANCE = new SearchExecutor();
+
+    private final ExecutorService executor;
+
+    private SearchExecutor() {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "search-leg-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static SearchExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs the task on the pool. Cancelling the returned future interrupts the worker,
+     * so a leg that missed its deadline stops waiting on its HTTP call.
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Future<?> running = executor.submit(() -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                running.cancel(true);
+            }
+        });
+        return future;
+    }
+}
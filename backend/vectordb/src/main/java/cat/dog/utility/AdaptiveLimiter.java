@@ -0,0 +1,166 @@
+package cat.dog.utility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD concurrency limit for calls to a backend whose throughput collapses when overloaded.
+ * The limit grows by one per round of fully used permits while latency stays close to the
+ * no-load latency, and is cut multiplicatively when latency climbs past TOLERANCE times that
+ * baseline or a call fails. Callers beyond the limit wait for a permit up to their own timeout.
+ * For a backend whose latency depends on the work asked of it (LLM generation), the latency cut
+ * can be turned off so only errors and timeouts shrink the limit.
+ */
+public class AdaptiveLimiter {
+    // a call slower than this multiple of the baseline means the backend is queueing
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.75;
+    // the baseline is the fastest call of the last WINDOW calls, so it can follow a slower backend
+    private static final int WINDOW = 50;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean latencyBackoff;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private long baselineMs = -1;
+    private long windowMinMs = Long.MAX_VALUE;
+    private int windowSamples;
+    private long lastDecreaseAt;
+
+    private long acquired;
+    private long rejected;
+    private long failures;
+    private long decreases;
+
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+        this(name, initialLimit, minLimit, maxLimit, true);
+    }
+
+    /**
+     * @param latencyBackoff false to cut the limit on failures only, never on slow calls.
+     */
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, boolean latencyBackoff) {
+        this.name = name;
+        this.latencyBackoff = latencyBackoff;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Waits up to timeoutMs for a permit.
+     * @return the time the permit was granted, to be passed to release(), or -1 if none was granted.
+     */
+    public long acquire(long timeoutMs) {
+        lock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    rejected++;
+                    return -1;
+                }
+                try {
+                    available.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected++;
+                    return -1;
+                }
+            }
+            inFlight++;
+            acquired++;
+            return System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the permit and feeds the call's outcome into the limit.
+     */
+    public void release(long acquiredAt, boolean success) {
+        release(acquiredAt, success, true);
+    }
+
+    /**
+     * @param sampleLatency false for calls whose latency is not comparable to the others (e.g. batches),
+     *                      only their failures move the limit.
+     */
+    public void release(long acquiredAt, boolean success, boolean sampleLatency) {
+        long now = System.currentTimeMillis();
+        long latencyMs = now - acquiredAt;
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            if (!success) {
+                failures++;
+                decrease(acquiredAt, now);
+            } else if (sampleLatency) {
+                updateBaseline(latencyMs);
+                if (latencyBackoff && latencyMs > baselineMs * TOLERANCE) {
+                    decrease(acquiredAt, now);
+                } else if (saturated && limit < maxLimit) {
+                    // +1 per limit's worth of successful calls, only while the permits are actually used
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+                }
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateBaseline(long latencyMs) {
+        windowMinMs = Math.min(windowMinMs, latencyMs);
+        if (baselineMs < 0 || latencyMs < baselineMs) {
+            baselineMs = latencyMs;
+        }
+        if (++windowSamples >= WINDOW) {
+            baselineMs = windowMinMs;
+            windowMinMs = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+
+    private void decrease(long acquiredAt, long now) {
+        // calls that were already running when the limit was last cut report the same overload, cut once
+        if (acquiredAt < lastDecreaseAt) {
+            return;
+        }
+        double previous = limit;
+        limit = Math.max(minLimit, limit * BACKOFF);
+        lastDecreaseAt = now;
+        decreases++;
+        System.out.println(name + " limiter: limit " + String.format("%.2f", previous) + " -> " + String.format("%.2f", limit));
+    }
+
+    public Map<String, Object> getStats() {
+        lock.lock();
+        try {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("limit", (int) limit);
+            stats.put("maxLimit", maxLimit);
+            stats.put("inFlight", inFlight);
+            stats.put("baselineMs", baselineMs);
+            stats.put("acquired", acquired);
+            stats.put("rejected", rejected);
+            stats.put("failures", failures);
+            stats.put("decreases", decreases);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
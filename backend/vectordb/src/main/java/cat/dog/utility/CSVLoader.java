@@ -72,6 +72,10 @@ public class CSVLoader {
             System.err.println(e.getMessage());
             e.printStackTrace();
         }
+        // once per import, not per row, so caches keyed by the data version survive until the import is done
+        if (count > 0) {
+            DataVersion.getInstance().bump();
+        }
         System.out.println("Import Finished! Processed " + count + " records.");
     }
     public void importCelebCSV(String filePath) {
@@ -109,6 +113,10 @@ public class CSVLoader {
             System.err.println(e.getMessage());
             e.printStackTrace();
         }
+        if (count > 0) {
+            CelebGazetteer.getInstance().invalidate();
+            DataVersion.getInstance().bump();
+        }
         System.out.println("Import Finished! Processed " + count + " records.");
     }
 }
\ No newline at end of file
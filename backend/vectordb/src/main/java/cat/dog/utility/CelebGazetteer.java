@@ -0,0 +1,193 @@
+package cat.dog.utility;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import cat.dog.repository.PostgresDbManager;
+
+/**
+ * Finds known celebrity names in a free-text query without a round trip to the LLM.
+ * An Aho-Corasick automaton is built over every distinct celeb_name of the celeb table;
+ * matching is case, accent and punctuation insensitive and only accepts whole words.
+ * The automaton is rebuilt lazily after the celeb table changes.
+ */
+public class CelebGazetteer {
+    private static final CelebGazetteer INSTANCE = new CelebGazetteer();
+
+    // very short names ("Jo", "T.I") match too many ordinary words to be useful
+    private static final int MIN_NAME_LENGTH = 3;
+    // after a failed or empty load the table is read again at most this often, not on every query
+    private static final long RETRY_AFTER_FAILURE_MS = 30_000;
+
+    private volatile Automaton automaton;
+    private volatile boolean stale = true;
+    private volatile long retryAt = 0;
+
+    private CelebGazetteer() {
+
+    }
+
+    public static CelebGazetteer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Marks the automaton as out of date, the next lookup rebuilds it from the celeb table.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * Returns the celebrity names (as stored in the celeb table) mentioned in the text, in order of appearance.
+     */
+    public List<String> findCelebrities(String text) {
+        if (text == null || text.isBlank()) {
+            return new ArrayList<>();
+        }
+        Automaton current = automaton;
+        if (current == null || (stale && System.currentTimeMillis() >= retryAt)) {
+            current = rebuild();
+        }
+        return current.match(normalize(text));
+    }
+
+    public synchronized Automaton rebuild() {
+        if (automaton != null && (!stale || System.currentTimeMillis() < retryAt)) {
+            return automaton;
+        }
+        // clear the flag first so an invalidation during the query triggers another rebuild
+        stale = false;
+        long start = System.currentTimeMillis();
+        List<String> celebNames = new PostgresDbManager().getAllCelebNames();
+        // getAllCelebNames returns an empty list when the database is unreachable: keep the previous names and retry later
+        if (celebNames.isEmpty()) {
+            stale = true;
+            retryAt = System.currentTimeMillis() + RETRY_AFTER_FAILURE_MS;
+            System.err.println("Celebrity gazetteer: no names loaded, keeping the previous automaton and retrying in "
+                    + RETRY_AFTER_FAILURE_MS + " ms");
+            if (automaton == null) {
+                automaton = new Automaton(new LinkedHashMap<>());
+            }
+            return automaton;
+        }
+        retryAt = 0;
+        Map<String, String> canonicalNames = new LinkedHashMap<>();
+        for (String name : celebNames) {
+            if (name == null) continue;
+            String normalized = normalize(name);
+            if (normalized.length() >= MIN_NAME_LENGTH) {
+                canonicalNames.putIfAbsent(normalized, name);
+            }
+        }
+        automaton = new Automaton(canonicalNames);
+        System.out.println("Celebrity gazetteer built with " + canonicalNames.size() + " names in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return automaton;
+    }
+
+    /**
+     * Lower-cases, strips accents and turns every run of non alphanumeric characters into a single space,
+     * so "Dwayne \"The Rock\" Johnson" and "dwayne the rock johnson" are the same key.
+     */
+    public static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return decomposed.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", " ").trim();
+    }
+
+    public static class Automaton {
+        private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+        private final List<List<Integer>> outputs = new ArrayList<>();
+        private final int[] fail;
+        private final String[] names;
+        private final int[] nameLengths;
+
+        private Automaton(Map<String, String> canonicalNames) {
+            names = new String[canonicalNames.size()];
+            nameLengths = new int[canonicalNames.size()];
+            newState();
+
+            // 1. trie of the normalized names
+            int index = 0;
+            for (Map.Entry<String, String> entry : canonicalNames.entrySet()) {
+                String key = entry.getKey();
+                int state = 0;
+                for (int i = 0; i < key.length(); i++) {
+                    Integer next = transitions.get(state).get(key.charAt(i));
+                    if (next == null) {
+                        next = newState();
+                        transitions.get(state).put(key.charAt(i), next);
+                    }
+                    state = next;
+                }
+                outputs.get(state).add(index);
+                names[index] = entry.getValue();
+                nameLengths[index] = key.length();
+                index++;
+            }
+
+            // 2. failure links, breadth first so a state's fallback is always resolved before its children
+            fail = new int[transitions.size()];
+            List<Integer> queue = new ArrayList<>(transitions.get(0).values());
+            for (int head = 0; head < queue.size(); head++) {
+                int state = queue.get(head);
+                for (Map.Entry<Character, Integer> edge : transitions.get(state).entrySet()) {
+                    int child = edge.getValue();
+                    int fallback = fail[state];
+                    while (fallback != 0 && !transitions.get(fallback).containsKey(edge.getKey())) {
+                        fallback = fail[fallback];
+                    }
+                    Integer target = transitions.get(fallback).get(edge.getKey());
+                    fail[child] = (target != null && target != child) ? target : 0;
+                    outputs.get(child).addAll(outputs.get(fail[child]));
+                    queue.add(child);
+                }
+            }
+        }
+
+        private int newState() {
+            transitions.add(new HashMap<>());
+            outputs.add(new ArrayList<>());
+            return transitions.size() - 1;
+        }
+
+        private List<String> match(String text) {
+            // candidate matches as {start, end, name index}
+            List<int[]> candidates = new ArrayList<>();
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                while (state != 0 && !transitions.get(state).containsKey(c)) {
+                    state = fail[state];
+                }
+                state = transitions.get(state).getOrDefault(c, 0);
+                for (int nameIndex : outputs.get(state)) {
+                    int start = i - nameLengths[nameIndex] + 1;
+                    boolean wordStart = start == 0 || text.charAt(start - 1) == ' ';
+                    boolean wordEnd = i == text.length() - 1 || text.charAt(i + 1) == ' ';
+                    if (wordStart && wordEnd) {
+                        candidates.add(new int[] { start, i, nameIndex });
+                    }
+                }
+            }
+
+            // keep the leftmost-longest matches, so "Adam Scott" wins over a nested "Scott"
+            candidates.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+            LinkedHashSet<String> found = new LinkedHashSet<>();
+            int coveredUntil = -1;
+            for (int[] candidate : candidates) {
+                if (candidate[0] > coveredUntil) {
+                    found.add(names[candidate[2]]);
+                    coveredUntil = candidate[1];
+                }
+            }
+            return new ArrayList<>(found);
+        }
+    }
+}
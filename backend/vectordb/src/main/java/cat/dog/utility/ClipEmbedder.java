@@ -4,28 +4,49 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import java.util.stream.Collectors;
 
+import org.opencv.core.Mat;
+
 /**
  * Service responsible for generating MobileCLIP embeddings for images and text.
- * * UPDATED: Now acts as a client for the MemeLLM FastAPI server running on localhost:8000.
+ * * UPDATED: Now acts as a client for the MemeLLM FastAPI server workers (ModelServerPool, localhost:8000 onwards,
+ * or their Unix domain sockets when MODEL_SERVER_UDS_DIR is set).
  * Ensure the Python server is running before using this utility.
  */
 public class ClipEmbedder {
 
-    private static final String API_BASE_URL = "http://127.0.0.1:8000";
-    private static final String ENDPOINT_TEXT = API_BASE_URL + "/embed_text";
-    private static final String ENDPOINT_IMAGE = API_BASE_URL + "/embed_image";
+    // paths on whichever model server worker the pool hands out
+    private static final String ENDPOINT_TEXT_BATCH = "/embed_text_batch";
+    private static final String ENDPOINT_IMAGE_BATCH = "/embed_image_batch";
+    private static final String OCTET_STREAM = "application/octet-stream";
+
+    // single embed calls from concurrent searches are merged into batch calls
+    private static final MicroBatcher<float[]> TEXT_BATCHER = new MicroBatcher<>("embedText",
+            texts -> embedTexts(texts, true),
+            RetrievalConfig.getInstance().getEmbedMicroBatchMax(), RetrievalConfig.getInstance().getEmbedMicroBatchWaitMs());
+    private static final MicroBatcher<float[]> IMAGE_BATCHER = new MicroBatcher<>("embedImage",
+            paths -> embedImages(paths, true),
+            RetrievalConfig.getInstance().getEmbedMicroBatchMax(), RetrievalConfig.getInstance().getEmbedMicroBatchWaitMs());
 
     public static void main(String[] args) {
 
@@ -62,13 +83,7 @@ public class ClipEmbedder {
      * @return JSON string representation of the vector.
      */
     public static String embedText(String textQuery, String saveNpyPath) {
-        if (textQuery == null || textQuery.isEmpty()) return null;
-
-        JsonObject obj = new JsonObject();
-        obj.addProperty("text", textQuery);
-        String jsonPayload = obj.toString();
-
-        String vectorJson = sendRequest(ENDPOINT_TEXT, jsonPayload);
+        String vectorJson = toJson(embedTextVector(textQuery));
 
         if (vectorJson != null && saveNpyPath != null) {
             saveVectorToFile(vectorJson, saveNpyPath);
@@ -77,7 +92,30 @@ public class ClipEmbedder {
         return vectorJson;
     }
 
+    /**
+     * Generates a normalized vector embedding for the given text, as floats.
+     * @return the vector, or null if the text is empty or the server failed.
+     */
+    public static float[] embedTextVector(String textQuery) {
+        if (textQuery == null || textQuery.isEmpty()) return null;
+        return TEXT_BATCHER.submit(textQuery);
+    }
 
+    /**
+     * Embeds several texts with a single call to the server.
+     * @return one JSON vector string per text, in order, or null if the batch failed.
+     */
+    public static List<String> embedTextBatch(List<String> textQueries) {
+        if (textQueries == null || textQueries.isEmpty()) return new ArrayList<>();
+        // a bulk batch is much slower than one embedding, keep it out of the limiter's latency baseline
+        List<float[]> vectors = embedTexts(textQueries, false);
+        if (vectors == null) {
+            return null;
+        }
+        List<String> results = new ArrayList<>();
+        vectors.forEach(vector -> results.add(toJson(vector)));
+        return results;
+    }
 
     /**
      * Overload for image embedding without saving to file.
@@ -87,24 +125,37 @@ public class ClipEmbedder {
     }
 
     /**
-     * Processes a list of images.
-     * Note: The current FastAPI server does not support native batching, so this 
-     * iterates and calls the singular endpoint for each image.
+     * Processes a list of images, BATCH_EMBED_SIZE of them per call to the server.
+     * @return one JSON vector string per path, in order; null for a missing image or a failed batch.
      */
     public static List<String> embedImageBatch(List<String> imagePaths) {
         List<String> results = new ArrayList<>();
-        
+        List<Integer> positions = new ArrayList<>();
+        List<String> absPaths = new ArrayList<>();
         for (String path : imagePaths) {
-            try {
-                // Call singular method
-                String result = embedImage(path, null);
-                results.add(result);
-            } catch (Exception e) {
-                System.err.println("Error processing batch item " + path + ": " + e.getMessage());
+            File imageFile = new File(path);
+            if (!imageFile.exists()) {
+                System.err.println("ClipEmbedder Error: Image file does not exist at " + path);
                 results.add(null);
+                continue;
             }
+            positions.add(results.size());
+            absPaths.add(imageFile.getAbsolutePath());
+            results.add(null);
         }
-        
+
+        int batchSize = Math.max(1, RetrievalConfig.getInstance().getBatchEmbedSize());
+        for (int start = 0; start < absPaths.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, absPaths.size());
+            List<float[]> vectors = embedImages(absPaths.subList(start, end), false);
+            if (vectors == null) {
+                continue;
+            }
+            for (int i = start; i < end; i++) {
+                results.set(positions.get(i), toJson(vectors.get(i - start)));
+            }
+        }
+
         return results;
     }
 
@@ -115,6 +166,20 @@ public class ClipEmbedder {
      * @return JSON string representation of the vector.
      */
     public static String embedImage(String imagePath, String saveNpyPath) {
+        String vectorJson = toJson(embedImageVector(imagePath));
+
+        if (vectorJson != null && saveNpyPath != null) {
+            saveVectorToFile(vectorJson, saveNpyPath);
+        }
+
+        return vectorJson;
+    }
+
+    /**
+     * Generates a normalized vector embedding for the image at the given path, as floats.
+     * @return the vector, or null if the image is missing or the server failed.
+     */
+    public static float[] embedImageVector(String imagePath) {
         File imageFile = new File(imagePath);
         if (!imageFile.exists()) {
             System.err.println("ClipEmbedder Error: Image file does not exist at " + imagePath);
@@ -122,60 +187,250 @@ public class ClipEmbedder {
         }
 
         // Resolve absolute path to send to server
-        String absPath = imageFile.getAbsolutePath().replace("\\", "\\\\");
-        String jsonPayload = "{\"image_path\": \"" + absPath + "\"}";
+        return IMAGE_BATCHER.submit(imageFile.getAbsolutePath());
+    }
 
-        String vectorJson = sendRequest(ENDPOINT_IMAGE, jsonPayload);
+    /**
+     * Embeds a query image held in memory. The ONNX image encoder reads its decoded Mat directly,
+     * the Python server gets the image's scratch file.
+     * @return the vector, or null if the image cannot be decoded or written, or the encoder failed.
+     */
+    public static float[] embedImageVector(QueryImage image) {
+        OnnxImageEncoder encoder = OnnxImageEncoder.getInstance();
+        if (encoder != null) {
+            Mat bgr = image.getMat();
+            if (bgr == null) {
+                System.err.println("ClipEmbedder Error: query image cannot be decoded");
+                return null;
+            }
+            List<float[]> vectors = encoder.encode(List.of(bgr));
+            return vectors == null ? null : vectors.get(0);
+        }
+        String path = image.getFile();
+        return path == null ? null : IMAGE_BATCHER.submit(path);
+    }
 
-        if (vectorJson != null && saveNpyPath != null) {
-            saveVectorToFile(vectorJson, saveNpyPath);
+    /**
+     * Embeds the texts in-process when the ONNX text encoder is enabled, on the Python server otherwise.
+     */
+    private static List<float[]> embedTexts(List<String> texts, boolean sampleLatency) {
+        OnnxTextEncoder encoder = OnnxTextEncoder.getInstance();
+        if (encoder != null) {
+            return encoder.encode(texts);
         }
+        return sendBatch(ENDPOINT_TEXT_BATCH, "texts", texts, sampleLatency);
+    }
 
-        return vectorJson;
+    /**
+     * Embeds the images in-process when the ONNX image encoder is enabled, on the Python server otherwise.
+     */
+    private static List<float[]> embedImages(List<String> absPaths, boolean sampleLatency) {
+        OnnxImageEncoder encoder = OnnxImageEncoder.getInstance();
+        if (encoder != null) {
+            return encoder.encodeFiles(absPaths);
+        }
+        return sendBatch(ENDPOINT_IMAGE_BATCH, "image_paths", absPaths, sampleLatency);
     }
 
     /**
-     * Helper to send HTTP POST request to the FastAPI server.
+     * Formats a vector as the JSON array the Weaviate GraphQL queries take, null stays null.
      */
-    private static String sendRequest(String endpoint, String jsonPayload) {
-        HttpURLConnection conn = null;
-        try {
-            URL url = new URL(endpoint);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(jsonPayload.getBytes(StandardCharsets.UTF_8));
+    public static String toJson(float[] vector) {
+        if (vector == null) {
+            return null;
+        }
+        StringBuilder json = new StringBuilder(vector.length * 12 + 2).append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                json.append(',');
             }
+            json.append(vector[i]);
+        }
+        return json.append(']').toString();
+    }
 
-            int code = conn.getResponseCode();
-            InputStream stream = (code == 200)
-                    ? conn.getInputStream()
-                    : conn.getErrorStream();
+    /**
+     * Sends the inputs to a batch endpoint as {"<field>": [...]}.
+     * @param sampleLatency whether the call's latency is comparable to a single embedding, for the adaptive limit.
+     * @return one vector per input, in order (null for an input the server could not embed), or null if the call failed.
+     */
+    private static List<float[]> sendBatch(String endpoint, String field, List<String> inputs, boolean sampleLatency) {
+        JsonObject obj = new JsonObject();
+        JsonArray array = new JsonArray();
+        inputs.forEach(array::add);
+        obj.add(field, array);
 
-            String resp = new BufferedReader(
-                    new InputStreamReader(stream, StandardCharsets.UTF_8)
-            ).lines().collect(Collectors.joining());
+        RawResponse resp = sendRaw(endpoint, obj.toString(), sampleLatency);
+        if (resp == null) {
+            return null;
+        }
+        try {
+            List<float[]> vectors = resp.isBinary() ? readBinary(resp) : readJson(resp);
+            if (vectors.size() != inputs.size()) {
+                throw new IllegalStateException("expected " + inputs.size() + " embeddings, got " + vectors.size());
+            }
+            return vectors;
+        } catch (Exception e) {
+            System.err.println("ClipEmbedder batch failure: " + e.getMessage());
+            return null;
+        }
+    }
 
-            if (code != 200) {
-                System.err.println("ClipEmbedder error [" + code + "]: " + resp);
-                return null;
+    /**
+     * Rows of X-Embedding-Dim little-endian float32 values; a row starting with NaN is an input the server could not embed.
+     */
+    private static List<float[]> readBinary(RawResponse resp) {
+        int dim = Integer.parseInt(resp.embeddingDim);
+        if (dim <= 0 || resp.body.length % (dim * Float.BYTES) != 0) {
+            throw new IllegalStateException("body of " + resp.body.length + " bytes is not made of " + dim + "-float rows");
+        }
+        FloatBuffer floats = ByteBuffer.wrap(resp.body).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        List<float[]> vectors = new ArrayList<>();
+        while (floats.hasRemaining()) {
+            float[] vector = new float[dim];
+            floats.get(vector);
+            vectors.add(Float.isNaN(vector[0]) ? null : vector);
+        }
+        return vectors;
+    }
+
+    private static List<float[]> readJson(RawResponse resp) {
+        JsonArray embeddings = JsonParser.parseString(new String(resp.body, StandardCharsets.UTF_8))
+                .getAsJsonObject().getAsJsonArray("embeddings");
+        List<float[]> vectors = new ArrayList<>();
+        for (JsonElement embedding : embeddings) {
+            if (embedding.isJsonNull()) {
+                vectors.add(null);
+                continue;
+            }
+            JsonArray values = embedding.getAsJsonArray();
+            float[] vector = new float[values.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = values.get(i).getAsFloat();
             }
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+
+    public static Map<String, Object> getBatcherStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("text", TEXT_BATCHER.getStats());
+        stats.put("image", IMAGE_BATCHER.getStats());
+        return stats;
+    }
+
+    private static class RawResponse {
+        final String contentType;
+        final String embeddingDim;
+        final byte[] body;
+
+        RawResponse(String contentType, String embeddingDim, byte[] body) {
+            this.contentType = contentType;
+            this.embeddingDim = embeddingDim;
+            this.body = body;
+        }
 
-            JsonObject json = JsonParser.parseString(resp).getAsJsonObject();
-            return json.getAsJsonArray("embedding").toString();
+        boolean isBinary() {
+            return contentType != null && contentType.startsWith(OCTET_STREAM) && embeddingDim != null;
+        }
+    }
+
+    /**
+     * Posts the payload and returns the raw response, or null on any failure.
+     * Asks for binary vectors when EMBED_BINARY is on; a server that only speaks JSON still answers in JSON.
+     */
+    private static RawResponse sendRaw(String endpoint, String jsonPayload, boolean sampleLatency) {
+        // waits a bounded time for a slot rather than piling more requests onto a struggling server
+        AdaptiveLimiter limiter = ModelServerLimiters.getInstance().embed();
+        long timeoutMs = RetrievalConfig.getInstance().getEmbedQueueTimeoutMs();
+        long permit = limiter.acquire(timeoutMs);
+        if (permit < 0) {
+            System.err.println("ClipEmbedder: no embedding slot within " + timeoutMs + " ms");
+            return null;
+        }
+        boolean success = false;
+        ModelServerPool.Worker worker = ModelServerPool.getInstance().acquire();
+        boolean reachable = true;
+        String accept = RetrievalConfig.getInstance().isEmbedBinary()
+                ? OCTET_STREAM + ", application/json;q=0.5"
+                : "application/json";
+        byte[] payload = jsonPayload.getBytes(StandardCharsets.UTF_8);
+        try {
+            RawResponse resp = null;
+            UnixSocketHttpClient unixClient = worker.unixClient();
+            boolean sent = false;
+            if (unixClient != null) {
+                try {
+                    resp = postUnix(unixClient, endpoint, payload, accept);
+                    sent = true;
+                } catch (ConnectException e) {
+                    // socket not listening (yet), the worker may still answer on TCP
+                    System.err.println("ClipEmbedder: " + e.getMessage() + ", using TCP");
+                }
+            }
+            if (!sent) {
+                resp = postHttp(worker, endpoint, payload, accept);
+            }
+            success = resp != null;
+            return resp;
 
         } catch (Exception e) {
             System.err.println("ClipEmbedder failure: " + e.getMessage());
+            reachable = !(e instanceof ConnectException);
             return null;
         } finally {
-            if (conn != null) conn.disconnect();
+            ModelServerPool.getInstance().release(worker, reachable);
+            limiter.release(permit, success, sampleLatency);
         }
     }
 
+    /**
+     * Posts over the worker's Unix domain socket, on a kept-alive connection.
+     * @return the response, or null if the server answered with an error.
+     */
+    private static RawResponse postUnix(UnixSocketHttpClient client, String endpoint, byte[] payload, String accept) throws IOException {
+        UnixSocketHttpClient.Response response = client.post(endpoint, "application/json; charset=utf-8", accept, payload);
+        if (response.getStatus() != 200) {
+            System.err.println("ClipEmbedder error [" + response.getStatus() + "]: " + new String(response.getBody(), StandardCharsets.UTF_8));
+            return null;
+        }
+        return new RawResponse(response.getHeader("Content-Type"), response.getHeader("X-Embedding-Dim"), response.getBody());
+    }
+
+    /**
+     * Posts over TCP. The streams are read to the end and not disconnected, so the JDK keeps the connection alive for the next call.
+     * @return the response, or null if the server answered with an error.
+     */
+    private static RawResponse postHttp(ModelServerPool.Worker worker, String endpoint, byte[] payload, String accept) throws IOException {
+        URL url = new URL(worker.url(endpoint));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        conn.setRequestProperty("Accept", accept);
+        conn.setReadTimeout((int) Math.min(Integer.MAX_VALUE, RetrievalConfig.getInstance().getEmbedReadTimeoutMs()));
+        conn.setDoOutput(true);
+
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(payload);
+        }
+
+        int code = conn.getResponseCode();
+        if (code != 200) {
+            InputStream errorStream = conn.getErrorStream();
+            String error = errorStream == null ? "" : new BufferedReader(
+                    new InputStreamReader(errorStream, StandardCharsets.UTF_8)
+            ).lines().collect(Collectors.joining());
+            System.err.println("ClipEmbedder error [" + code + "]: " + error);
+            return null;
+        }
+
+        byte[] body;
+        try (InputStream stream = conn.getInputStream()) {
+            body = stream.readAllBytes();
+        }
+        return new RawResponse(conn.getContentType(), conn.getHeaderField("X-Embedding-Dim"), body);
+    }
 
     /**
      * Saves the vector JSON string to a file.
@@ -0,0 +1,191 @@
+package cat.dog.utility;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Byte-level BPE tokenizer of CLIP, as used by the MobileCLIP text encoder (open_clip's SimpleTokenizer):
+ * same vocabulary file, same pre-tokenization, same merges, same 77-token context with start/end tokens and zero padding.
+ * ftfy's mojibake repair is not reproduced, it only matters for broken input encodings.
+ * Thread safe.
+ */
+public class ClipTokenizer {
+    public static final int CONTEXT_LENGTH = 77;
+
+    // the vocabulary holds 256 bytes, 256 end-of-word bytes, then the merges, then the two special tokens
+    private static final int MERGE_COUNT = 49152 - 256 - 2;
+    private static final String START_OF_TEXT = "<|startoftext|>";
+    private static final String END_OF_TEXT = "<|endoftext|>";
+    private static final Pattern TOKEN_PATTERN = Pattern.compile(
+            "<\\|startoftext\\|>|<\\|endoftext\\|>|'s|'t|'re|'ve|'m|'ll|'d|[\\p{L}]+|[\\p{N}]|[^\\s\\p{L}\\p{N}]+",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+", Pattern.UNICODE_CHARACTER_CLASS);
+
+    // a token's pieces are cached, up to this many distinct tokens
+    private static final int MAX_CACHED_TOKENS = 100_000;
+
+    private final String[] byteEncoder = new String[256];
+    private final Map<String, Integer> encoder = new HashMap<>();
+    private final Map<String, Integer> bpeRanks = new HashMap<>();
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+    private final int startToken;
+    private final int endToken;
+
+    /**
+     * @param vocabPath bpe_simple_vocab_16e6.txt.gz, copied next to the models by export_onnx.py.
+     */
+    public ClipTokenizer(String vocabPath) throws IOException {
+        List<String[]> merges = new ArrayList<>();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(vocabPath));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            reader.readLine(); // version header
+            String line;
+            while (merges.size() < MERGE_COUNT && (line = reader.readLine()) != null) {
+                merges.add(line.split(" "));
+            }
+        }
+
+        List<String> byteSymbols = bytesToUnicode(byteEncoder);
+        List<String> vocab = new ArrayList<>(byteSymbols);
+        for (String symbol : byteSymbols) {
+            vocab.add(symbol + "</w>");
+        }
+        for (int i = 0; i < merges.size(); i++) {
+            String[] merge = merges.get(i);
+            vocab.add(merge[0] + merge[1]);
+            bpeRanks.put(merge[0] + " " + merge[1], i);
+        }
+        vocab.add(START_OF_TEXT);
+        vocab.add(END_OF_TEXT);
+        for (int i = 0; i < vocab.size(); i++) {
+            encoder.put(vocab.get(i), i);
+        }
+        this.startToken = encoder.get(START_OF_TEXT);
+        this.endToken = encoder.get(END_OF_TEXT);
+        cache.put(START_OF_TEXT, START_OF_TEXT);
+        cache.put(END_OF_TEXT, END_OF_TEXT);
+    }
+
+    /**
+     * @return CONTEXT_LENGTH token ids: start, the text (truncated so the end token still fits), end, zero padding.
+     */
+    public long[] tokenize(String text) {
+        List<Integer> ids = encode(text);
+        long[] tokens = new long[CONTEXT_LENGTH];
+        tokens[0] = startToken;
+        int length = Math.min(ids.size(), CONTEXT_LENGTH - 2);
+        for (int i = 0; i < length; i++) {
+            tokens[i + 1] = ids.get(i);
+        }
+        tokens[length + 1] = endToken;
+        return tokens;
+    }
+
+    public List<Integer> encode(String text) {
+        String cleaned = WHITESPACE.matcher(unescapeHtml(text)).replaceAll(" ").trim().toLowerCase(Locale.ROOT);
+        List<Integer> ids = new ArrayList<>();
+        Matcher matcher = TOKEN_PATTERN.matcher(cleaned);
+        while (matcher.find()) {
+            StringBuilder symbols = new StringBuilder();
+            for (byte b : matcher.group().getBytes(StandardCharsets.UTF_8)) {
+                symbols.append(byteEncoder[b & 0xff]);
+            }
+            for (String piece : bpe(symbols.toString()).split(" ")) {
+                ids.add(encoder.get(piece));
+            }
+        }
+        return ids;
+    }
+
+    private String bpe(String token) {
+        String cached = cache.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        List<String> word = new ArrayList<>();
+        token.codePoints().forEach(cp -> word.add(new String(Character.toChars(cp))));
+        word.set(word.size() - 1, word.get(word.size() - 1) + "</w>");
+
+        while (word.size() > 1) {
+            // the adjacent pair merged earliest in training goes first
+            int bestRank = Integer.MAX_VALUE;
+            String bestFirst = null;
+            String bestSecond = null;
+            for (int i = 0; i < word.size() - 1; i++) {
+                Integer rank = bpeRanks.get(word.get(i) + " " + word.get(i + 1));
+                if (rank != null && rank < bestRank) {
+                    bestRank = rank;
+                    bestFirst = word.get(i);
+                    bestSecond = word.get(i + 1);
+                }
+            }
+            if (bestFirst == null) {
+                break;
+            }
+            List<String> merged = new ArrayList<>(word.size());
+            for (int i = 0; i < word.size(); i++) {
+                if (i < word.size() - 1 && word.get(i).equals(bestFirst) && word.get(i + 1).equals(bestSecond)) {
+                    merged.add(bestFirst + bestSecond);
+                    i++;
+                } else {
+                    merged.add(word.get(i));
+                }
+            }
+            word.clear();
+            word.addAll(merged);
+        }
+
+        String result = String.join(" ", word);
+        if (cache.size() < MAX_CACHED_TOKENS) {
+            cache.put(token, result);
+        }
+        return result;
+    }
+
+    // html.unescape of the common entities, applied twice like basic_clean does
+    private static String unescapeHtml(String text) {
+        String result = text;
+        for (int pass = 0; pass < 2; pass++) {
+            result = result.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                    .replace("&#39;", "'").replace("&apos;", "'").replace("&nbsp;", " ").replace("&amp;", "&");
+        }
+        return result;
+    }
+
+    /**
+     * GPT-2's reversible mapping of the 256 byte values to printable unicode characters, filled into table by byte value.
+     * @return the symbols in vocabulary order: the printable bytes first, then the remapped ones.
+     */
+    private static List<String> bytesToUnicode(String[] table) {
+        List<String> symbols = new ArrayList<>();
+        boolean[] printable = new boolean[256];
+        for (int b = 0; b < 256; b++) {
+            printable[b] = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+            if (printable[b]) {
+                table[b] = String.valueOf((char) b);
+                symbols.add(table[b]);
+            }
+        }
+        int next = 0;
+        for (int b = 0; b < 256; b++) {
+            if (!printable[b]) {
+                table[b] = String.valueOf((char) (256 + next++));
+                symbols.add(table[b]);
+            }
+        }
+        return symbols;
+    }
+}
@@ -0,0 +1,29 @@
+package cat.dog.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stamp of the searchable data. Every importer that writes vectors, labels or search indexes bumps it,
+ * so cached rankings computed against older data are no longer looked up.
+ */
+public class DataVersion {
+    private static final DataVersion INSTANCE = new DataVersion();
+
+    private final AtomicLong version = new AtomicLong(0);
+
+    private DataVersion() {
+
+    }
+
+    public static DataVersion getInstance() {
+        return INSTANCE;
+    }
+
+    public long current() {
+        return version.get();
+    }
+
+    public long bump() {
+        return version.incrementAndGet();
+    }
+}
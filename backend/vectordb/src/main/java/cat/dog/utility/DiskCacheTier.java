@@ -0,0 +1,197 @@
+package cat.dog.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk tier behind an in-memory cache: one file per key, named by the key's SHA-256, holding the key, the time
+ * the value was produced and the value in whatever format the Serializer writes. Entries past the TTL or whose
+ * file belongs to another key are dropped when read; beyond maxEntries the oldest files are deleted.
+ * Disabled when maxEntries is 0 or the directory cannot be created.
+ */
+public class DiskCacheTier<V> {
+
+    /**
+     * Writes and reads a whole entry file, so each cache keeps its own file format.
+     */
+    public interface Serializer<V> {
+        byte[] write(String key, V value, long storedAt) throws IOException;
+
+        Entry<V> read(byte[] bytes) throws IOException;
+    }
+
+    public static class Entry<V> {
+        private final String key;
+        private final V value;
+        private final long storedAt;
+
+        public Entry(String key, V value, long storedAt) {
+            this.key = key;
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+
+        public V getValue() { return value; }
+        public long getStoredAt() { return storedAt; }
+    }
+
+    private final String name;
+    private final Path directory;
+    private final String extension;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final Serializer<V> serializer;
+    private final boolean enabled;
+
+    private final AtomicInteger entries = new AtomicInteger(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param name used in log lines, e.g. "LLM analysis cache".
+     * @param extension of the entry files, e.g. ".json".
+     */
+    public DiskCacheTier(String name, String directory, String extension, int maxEntries, long ttlMs, Serializer<V> serializer) {
+        this.name = name;
+        this.directory = Paths.get(directory);
+        this.extension = extension;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.serializer = serializer;
+        boolean opened = false;
+        if (maxEntries > 0) {
+            try {
+                Files.createDirectories(this.directory);
+                entries.set(listEntries().length);
+                opened = true;
+                System.out.println(name + " opened at " + directory + " with " + entries.get() + " entries on disk");
+            } catch (Exception e) {
+                System.out.println(name + " directory unavailable, caching in memory only: " + e.getMessage());
+            }
+        }
+        this.enabled = opened;
+    }
+
+    /**
+     * @return the stored entry, or null if it is missing, expired, unreadable or the tier is disabled.
+     */
+    public Entry<V> read(String key) {
+        Path file = fileFor(key);
+        if (file == null || !Files.exists(file)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            Entry<V> stored = serializer.read(Files.readAllBytes(file));
+            // the file name is a hash, make sure it really belongs to this key
+            if (!key.equals(stored.key) || (ttlMs > 0 && System.currentTimeMillis() - stored.storedAt > ttlMs)) {
+                deleteFile(file);
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return stored;
+        } catch (Exception e) {
+            System.out.println("Unreadable " + name + " entry " + file + ": " + e.getMessage());
+            deleteFile(file);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void write(String key, V value, long storedAt) {
+        Path file = fileFor(key);
+        if (file == null) {
+            return;
+        }
+        try {
+            byte[] bytes = serializer.write(key, value, storedAt);
+            boolean existed = Files.exists(file);
+            // write next to the target and rename, so a crash never leaves a half written entry
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            Files.write(temp, bytes);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writes.incrementAndGet();
+            if (!existed && entries.incrementAndGet() > maxEntries) {
+                trim();
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to write " + name + " entry: " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.get());
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("writes", writes.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    /**
+     * Deletes the least recently written files, leaving 10% headroom so the directory is not listed on every write.
+     */
+    private synchronized void trim() {
+        File[] files = listEntries();
+        int target = maxEntries - maxEntries / 10;
+        if (files.length <= target) {
+            entries.set(files.length);
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        int removed = 0;
+        for (int i = 0; i < files.length - target; i++) {
+            if (files[i].delete()) {
+                removed++;
+            }
+        }
+        evictions.addAndGet(removed);
+        entries.set(files.length - removed);
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            if (Files.deleteIfExists(file)) {
+                entries.decrementAndGet();
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to delete " + name + " entry " + file + ": " + e.getMessage());
+        }
+    }
+
+    private File[] listEntries() {
+        File[] files = directory.toFile().listFiles((dir, fileName) -> fileName.endsWith(extension));
+        return files == null ? new File[0] : files;
+    }
+
+    private Path fileFor(String key) {
+        if (!enabled || !Files.isDirectory(directory)) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String hash = HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+            return directory.resolve(hash + extension);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package cat.dog.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the CLIP embeddings of query images, keyed by the hash of their decoded pixels (QueryImage.getContentHash()),
+ * so a re-uploaded meme skips text removal and both embeddings whatever file format or name it comes with.
+ * The original and the cleaned embedding are separate entries, each also keyed by the encoder (and text remover)
+ * that produced it. A bounded LRU with TTL sits in memory, sized in megabytes, backed by one small binary file
+ * per entry on disk (DiskCacheTier) when IMAGE_EMBED_CACHE_DISK_MAX_ENTRIES is above 0.
+ * Cached vectors are shared, callers must not modify them.
+ */
+public class ImageEmbeddingCache {
+    private static final ImageEmbeddingCache INSTANCE = new ImageEmbeddingCache();
+
+    public static final String ORIGINAL = "original";
+    public static final String CLEANED = "cleaned";
+
+    // a 512 float MobileCLIP vector plus the key, the map entry and the LRU bookkeeping
+    private static final int ENTRY_BYTES = 512 * Float.BYTES + 256;
+
+    private final LruTtlCache<String, float[]> memory;
+    private final DiskCacheTier<float[]> disk;
+
+    private ImageEmbeddingCache() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        long ttlMs = config.getImageEmbedCacheTtlMs();
+        int maxEntries = (int) Math.min(Integer.MAX_VALUE, config.getImageEmbedCacheMaxMb() * 1024L * 1024L / ENTRY_BYTES);
+        this.memory = new LruTtlCache<>("imageEmbeddings", maxEntries, ttlMs);
+        this.disk = new DiskCacheTier<>("Image embedding cache", config.getImageEmbedCacheDir(), ".bin",
+                config.getImageEmbedCacheDiskMaxEntries(), ttlMs, new BinarySerializer());
+    }
+
+    public static ImageEmbeddingCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param kind ORIGINAL or CLEANED.
+     * @return the cached embedding, or null on a miss or when contentHash is null.
+     */
+    public float[] get(String contentHash, String kind) {
+        if (contentHash == null) {
+            return null;
+        }
+        String key = key(contentHash, kind);
+        float[] cached = memory.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        DiskCacheTier.Entry<float[]> fromDisk = disk.read(key);
+        if (fromDisk == null) {
+            return null;
+        }
+        memory.put(key, fromDisk.getValue(), fromDisk.getStoredAt());
+        return fromDisk.getValue();
+    }
+
+    /**
+     * Stores an embedding; a null hash or vector (a failed embedding) is ignored.
+     */
+    public void put(String contentHash, String kind, float[] vector) {
+        if (contentHash == null || vector == null) {
+            return;
+        }
+        String key = key(contentHash, kind);
+        long storedAt = System.currentTimeMillis();
+        memory.put(key, vector, storedAt);
+        disk.write(key, vector, storedAt);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("memory", memory.getStats());
+        stats.put("disk", disk.getStats());
+        return stats;
+    }
+
+    // the pixels alone do not decide the vector: the cleaned one also depends on how the text was removed
+    private static String key(String contentHash, String kind) {
+        String encoder = OnnxImageEncoder.getInstance() != null ? "onnx" : "server";
+        if (CLEANED.equals(kind)) {
+            encoder += "+" + (MemeTextRemover.getInstance() != null ? "opencv" : "python");
+        }
+        return kind + "|" + encoder + "|" + contentHash;
+    }
+
+    // key, storedAt, dimension, then the floats, big-endian as DataOutputStream writes them
+    private static class BinarySerializer implements DiskCacheTier.Serializer<float[]> {
+        @Override
+        public byte[] write(String key, float[] vector, long storedAt) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(vector.length * Float.BYTES + 128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(key);
+                out.writeLong(storedAt);
+                out.writeInt(vector.length);
+                for (float value : vector) {
+                    out.writeFloat(value);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public DiskCacheTier.Entry<float[]> read(byte[] bytes) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                String key = in.readUTF();
+                long storedAt = in.readLong();
+                float[] vector = new float[in.readInt()];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = in.readFloat();
+                }
+                return new DiskCacheTier.Entry<>(key, vector, storedAt);
+            }
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package cat.dog.utility;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.stereotype.Component;
 
+import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Component
@@ -16,7 +26,20 @@ public class LLMQueryProcessor {
 
     private final ObjectMapper objectMapper;
     private final HttpClient httpClient;
-    private static final String SERVER_URL = "http://127.0.0.1:8000/analyze";
+    // paths on whichever model server worker the pool hands out
+    private static final String SERVER_PATH = "/analyze";
+    private static final String STREAM_PATH = "/analyze_stream";
+    private static final String BATCH_PATH = "/analyze_batch";
+    // {"results": [analysis, ...]}, one analysis per query in request order
+    private static final TypeReference<Map<String, List<Map<String, Object>>>> BATCH_RESPONSE_TYPE = new TypeReference<>() { };
+
+    /**
+     * Receives each top-level field of the analysis as soon as its value has been fully streamed.
+     */
+    @FunctionalInterface
+    public interface AnalysisListener {
+        void onField(String field, Object value);
+    }
 
     public LLMQueryProcessor() {
         this.objectMapper = new ObjectMapper();
@@ -26,6 +49,22 @@ public class LLMQueryProcessor {
     }
 
     public Map<String, Object> processQuery(String queryText) {
+        QueryAnalysisCache cache = QueryAnalysisCache.getInstance();
+        Map<String, Object> cached = cache.get(queryText);
+        if (cached != null) {
+            System.out.println("LLM analysis served from cache: " + cached);
+            return cached;
+        }
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        // do not queue more work behind a saturated server, the caller falls back to the raw query
+        AdaptiveLimiter limiter = ModelServerLimiters.getInstance().analyze();
+        long permit = limiter.acquire(0);
+        if (permit < 0) {
+            return saturatedError();
+        }
+        boolean success = false;
+        ModelServerPool.Worker worker = ModelServerPool.getInstance().acquire();
+        boolean reachable = true;
         try {
             // 1. Create JSON Payload: {"query": "..."}
             Map<String, String> payload = new HashMap<>();
@@ -34,8 +73,9 @@ public class LLMQueryProcessor {
 
             // 2. Build HTTP Request
             HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(SERVER_URL))
+                    .uri(URI.create(worker.url(SERVER_PATH)))
                     .header("Content-Type", "application/json")
+                    .timeout(Duration.ofMillis(config.getLlmTimeoutMs()))
                     .POST(HttpRequest.BodyPublishers.ofString(requestBody))
                     .build();
 
@@ -54,14 +94,200 @@ public class LLMQueryProcessor {
             // 4. Parse Response
             // The Python server now returns clean JSON, so we just map it.
 
-            return objectMapper.readValue(response.body(), Map.class);
+            Map<String, Object> analysis = objectMapper.readValue(response.body(), Map.class);
+            cache.put(queryText, analysis);
+            success = true;
+            return analysis;
 
         } catch (Exception e) {
             e.printStackTrace();
+            reachable = !(e instanceof ConnectException);
             Map<String, Object> errorMap = new HashMap<>();
             errorMap.put("error", "Failed to communicate with AI Server: " + e.getMessage());
             return errorMap;
+        } finally {
+            ModelServerPool.getInstance().release(worker, reachable);
+            limiter.release(permit, success);
+        }
+    }
+
+    /**
+     * Same as processQuery, but reads /analyze_stream while the LLM is still generating
+     * and hands every field to the listener as soon as it is complete, e.g. "celebrities"
+     * arrives well before the long "text" description.
+     * @return all fields received, or a map with an "error" key if the stream failed.
+     */
+    public Map<String, Object> processQueryStreaming(String queryText, AnalysisListener listener) {
+        QueryAnalysisCache cache = QueryAnalysisCache.getInstance();
+        Map<String, Object> cached = cache.get(queryText);
+        if (cached != null) {
+            System.out.println("LLM analysis served from cache: " + cached);
+            if (listener != null) {
+                cached.forEach(listener::onField);
+            }
+            return cached;
+        }
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        AdaptiveLimiter limiter = ModelServerLimiters.getInstance().analyze();
+        long permit = limiter.acquire(0);
+        if (permit < 0) {
+            return saturatedError();
+        }
+        boolean success = false;
+        ModelServerPool.Worker worker = ModelServerPool.getInstance().acquire();
+        boolean reachable = true;
+        Map<String, Object> result = new LinkedHashMap<>();
+        try {
+            Map<String, String> payload = new HashMap<>();
+            payload.put("query", queryText);
+            String requestBody = objectMapper.writeValueAsString(payload);
+
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(worker.url(STREAM_PATH)))
+                    .header("Content-Type", "application/json")
+                    .timeout(Duration.ofMillis(config.getLlmTimeoutMs()))
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                    .build();
+
+            // returns as soon as the headers are in, the body is parsed while it is being generated
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+            try (InputStream body = response.body();
+                 JsonParser parser = objectMapper.createParser(body)) {
+                if (response.statusCode() != 200) {
+                    throw new RuntimeException("Server returned error: " + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new RuntimeException("Expected a JSON object from the AI Server");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    Object value = parser.readValueAs(Object.class);
+                    result.put(field, value);
+                    System.out.println("Streamed field " + field + ": " + value);
+                    if (listener != null) {
+                        listener.onField(field, value);
+                    }
+                }
+            }
+            cache.put(queryText, result);
+            success = true;
+            return result;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            reachable = !(e instanceof ConnectException);
+            // keep what already arrived, the caller only falls back for the missing fields
+            result.put("error", "Failed to stream from AI Server: " + e.getMessage());
+            return result;
+        } finally {
+            ModelServerPool.getInstance().release(worker, reachable);
+            limiter.release(permit, success);
+        }
+    }
+
+    /**
+     * Analyzes many queries for a batch job. Cached analyses are reused, identical queries are analyzed once,
+     * and the rest are sent to /analyze_batch in chunks so the LLM generates several answers per forward pass.
+     * @return one analysis per query, in order; a failed one is a map with an "error" key.
+     */
+    public List<Map<String, Object>> processQueries(List<String> queryTexts) {
+        QueryAnalysisCache cache = QueryAnalysisCache.getInstance();
+        List<Map<String, Object>> results = new ArrayList<>(Collections.nCopies(queryTexts.size(), null));
+        // normalized query -> positions waiting for its analysis
+        Map<String, List<Integer>> pending = new LinkedHashMap<>();
+        List<String> toAnalyze = new ArrayList<>();
+        for (int i = 0; i < queryTexts.size(); i++) {
+            String queryText = queryTexts.get(i);
+            Map<String, Object> cached = cache.get(queryText);
+            if (cached != null) {
+                results.set(i, cached);
+                continue;
+            }
+            pending.computeIfAbsent(QueryAnalysisCache.normalize(queryText), key -> {
+                toAnalyze.add(queryText);
+                return new ArrayList<>();
+            }).add(i);
         }
+
+        int batchSize = Math.max(1, RetrievalConfig.getInstance().getBatchAnalyzeSize());
+        for (int start = 0; start < toAnalyze.size(); start += batchSize) {
+            List<String> chunk = toAnalyze.subList(start, Math.min(start + batchSize, toAnalyze.size()));
+            List<Map<String, Object>> analyses = analyzeBatch(chunk);
+            for (int j = 0; j < chunk.size(); j++) {
+                cache.put(chunk.get(j), analyses.get(j));
+                for (int position : pending.get(QueryAnalysisCache.normalize(chunk.get(j)))) {
+                    results.set(position, new LinkedHashMap<>(analyses.get(j)));
+                }
+            }
+        }
+        return results;
+    }
+
+    private List<Map<String, Object>> analyzeBatch(List<String> queryTexts) {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        // batch calls wait for a permit, interactive queries never do and degrade instead
+        AdaptiveLimiter limiter = ModelServerLimiters.getInstance().analyze();
+        long permit = limiter.acquire(config.getBatchLlmTimeoutMs());
+        boolean success = false;
+        ModelServerPool.Worker worker = null;
+        boolean reachable = true;
+        long start = System.currentTimeMillis();
+        try {
+            if (permit < 0) {
+                throw new RuntimeException("no analysis slot within " + config.getBatchLlmTimeoutMs() + " ms");
+            }
+            worker = ModelServerPool.getInstance().acquire();
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("queries", queryTexts);
+            String requestBody = objectMapper.writeValueAsString(payload);
+
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(worker.url(BATCH_PATH)))
+                    .header("Content-Type", "application/json")
+                    .timeout(Duration.ofMillis(config.getBatchLlmTimeoutMs()))
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                    .build();
+
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new RuntimeException("Server returned error: " + response.body());
+            }
+
+            List<Map<String, Object>> analyses = objectMapper.readValue(response.body(), BATCH_RESPONSE_TYPE).get("results");
+            if (analyses == null || analyses.size() != queryTexts.size()) {
+                throw new RuntimeException("Expected " + queryTexts.size() + " analyses from the AI Server");
+            }
+            System.out.println("Analyzed a batch of " + queryTexts.size() + " queries in " + (System.currentTimeMillis() - start) + " ms");
+            success = true;
+            return analyses;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            reachable = !(e instanceof ConnectException);
+            List<Map<String, Object>> errors = new ArrayList<>();
+            for (int i = 0; i < queryTexts.size(); i++) {
+                Map<String, Object> errorMap = new HashMap<>();
+                errorMap.put("error", "Failed to analyze batch on AI Server: " + e.getMessage());
+                errors.add(errorMap);
+            }
+            return errors;
+        } finally {
+            if (worker != null) {
+                ModelServerPool.getInstance().release(worker, reachable);
+            }
+            if (permit >= 0) {
+                // a batch takes several times longer than one analysis, only its failures count
+                limiter.release(permit, success, false);
+            }
+        }
+    }
+
+    private Map<String, Object> saturatedError() {
+        Map<String, Object> errorMap = new HashMap<>();
+        errorMap.put("error", "AI Server is saturated, no analysis slot available");
+        return errorMap;
     }
 
     // ==========================================
@@ -0,0 +1,112 @@
+package cat.dog.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache: least recently used entries are evicted once maxEntries is reached,
+ * and entries older than ttlMs are dropped when they are read.
+ * All methods are synchronized, the values are expected to be cheap to hand out (immutable or copied by the caller).
+ */
+public class LruTtlCache<K, V> {
+    private final String name;
+    private final int maxEntries;
+    private final long ttlMs;
+    // access ordered, so the first entry is always the least recently used one
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    private static class Entry<V> {
+        private final V value;
+        private final long storedAt;
+
+        private Entry(V value, long storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+
+    public LruTtlCache(String name, int maxEntries, long ttlMs) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @return the cached value, or null if the key is missing or its entry has expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (isExpired(entry)) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        put(key, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Stores a value that was produced at storedAt, e.g. one promoted from a disk tier,
+     * so it does not outlive its original TTL.
+     */
+    public synchronized void put(K key, V value, long storedAt) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, storedAt));
+        Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", entries.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("expirations", expirations);
+        long lookups = hits + misses;
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return stats;
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return ttlMs > 0 && System.currentTimeMillis() - entry.storedAt > ttlMs;
+    }
+}
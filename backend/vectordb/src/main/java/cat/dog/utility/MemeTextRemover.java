@@ -0,0 +1,147 @@
+package cat.dog.utility;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.TextDetectionModel_EAST;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.Photo;
+
+/**
+ * Removes the caption text of a meme in-process: EAST finds the text regions, the mask is dilated like
+ * remove_meme_text.py does, then OpenCV's Telea inpainting fills it in.
+ * A detector is not thread safe, so a few are pooled and a caller waits for a free one; inpainting runs outside the pool.
+ * Fills are blurrier than the LaMa model of the Python script, which matters little for the cleaned image embedding.
+ */
+public class MemeTextRemover {
+    private static MemeTextRemover instance;
+    private static boolean loadAttempted = false;
+
+    // two iterations of a 9x9 kernel, as in remove_meme_text.py
+    private static final int DILATE_ITERATIONS = 2;
+    private static final double INPAINT_RADIUS = 5;
+    private static final float NMS_THRESHOLD = 0.4f;
+
+    private final BlockingQueue<TextDetectionModel_EAST> detectors;
+    private final int detectorCount;
+    private final Mat dilateKernel;
+
+    private final AtomicLong images = new AtomicLong(0);
+    private final AtomicLong regions = new AtomicLong(0);
+    private final AtomicLong totalMs = new AtomicLong(0);
+
+    private MemeTextRemover(String modelPath, int detectorCount, int inputSize, float confidence) {
+        this.detectorCount = Math.max(1, detectorCount);
+        this.detectors = new ArrayBlockingQueue<>(this.detectorCount);
+        for (int i = 0; i < this.detectorCount; i++) {
+            TextDetectionModel_EAST detector = new TextDetectionModel_EAST(modelPath);
+            detector.setConfidenceThreshold(confidence).setNMSThreshold(NMS_THRESHOLD);
+            // EAST's training mean, BGR to RGB; the frame is resized to the input size, boxes come back in frame coordinates
+            detector.setInputParams(1.0, new Size(inputSize, inputSize), new Scalar(123.68, 116.78, 103.94), true);
+            detectors.add(detector);
+        }
+        this.dilateKernel = Mat.ones(9, 9, CvType.CV_8U);
+    }
+
+    /**
+     * @return the remover, loaded on first use; null if TEXT_REMOVER is not "opencv" or the EAST model or OpenCV
+     * could not be loaded, in which case RemoveMemeText keeps running the Python script.
+     */
+    public static synchronized MemeTextRemover getInstance() {
+        if (loadAttempted) {
+            return instance;
+        }
+        loadAttempted = true;
+
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        if (!"opencv".equalsIgnoreCase(config.getTextRemover())) {
+            return null;
+        }
+        // EAST downsamples by 32, any other size fails inside every detect call rather than here
+        if (config.getEastInputSize() <= 0 || config.getEastInputSize() % 32 != 0) {
+            System.err.println("❌ EAST_INPUT_SIZE must be a positive multiple of 32, got " + config.getEastInputSize()
+                    + ". Using the Python script for text removal.");
+            return null;
+        }
+        if (!new File(config.getEastModel()).exists()) {
+            System.err.println("❌ EAST text detection model missing (" + config.getEastModel()
+                    + "). Using the Python script for text removal.");
+            return null;
+        }
+        if (!OpenCvLoader.load()) {
+            System.err.println("❌ OpenCV unavailable, using the Python script for text removal.");
+            return null;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            instance = new MemeTextRemover(config.getEastModel(), config.getTextRemoverInstances(),
+                    config.getEastInputSize(), config.getEastConfidence());
+            System.out.println("✅ OpenCV text remover loaded in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("❌ Failed to load the EAST text detector, using the Python script for text removal.");
+        }
+        return instance;
+    }
+
+    /**
+     * @param bgr a decoded BGR image, left untouched.
+     * @return a new image with the detected text inpainted, or a copy of the input if no text was found; the caller releases it.
+     * @throws InterruptedException if the caller was interrupted while waiting for a detector.
+     */
+    public Mat clean(Mat bgr) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<MatOfPoint> boxes = new ArrayList<>();
+        MatOfFloat confidences = new MatOfFloat();
+        TextDetectionModel_EAST detector = detectors.take();
+        try {
+            detector.detect(bgr, boxes, confidences);
+        } finally {
+            detectors.add(detector);
+            confidences.release();
+        }
+
+        Mat cleaned = new Mat();
+        if (boxes.isEmpty()) {
+            bgr.copyTo(cleaned);
+        } else {
+            Mat mask = Mat.zeros(bgr.size(), CvType.CV_8UC1);
+            try {
+                Imgproc.fillPoly(mask, boxes, new Scalar(255));
+                Imgproc.dilate(mask, mask, dilateKernel, new Point(-1, -1), DILATE_ITERATIONS);
+                Photo.inpaint(bgr, mask, cleaned, INPAINT_RADIUS, Photo.INPAINT_TELEA);
+            } finally {
+                mask.release();
+                boxes.forEach(Mat::release);
+            }
+        }
+        images.incrementAndGet();
+        regions.addAndGet(boxes.size());
+        totalMs.addAndGet(System.currentTimeMillis() - start);
+        return cleaned;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long count = images.get();
+        stats.put("detectors", detectorCount);
+        stats.put("idleDetectors", detectors.size());
+        stats.put("images", count);
+        stats.put("textRegions", regions.get());
+        stats.put("meanCleanMs", count == 0 ? 0 : totalMs.get() / count);
+        return stats;
+    }
+}
@@ -0,0 +1,139 @@
+package cat.dog.utility;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Collects single requests arriving from many threads for up to maxWaitMs (or until maxBatch of them are in)
+ * and answers them with one call of a batch function. Identical inputs in a batch are sent once.
+ * The batch calls run on their own threads, so the next batch is collected while the previous one is in flight.
+ */
+public class MicroBatcher<R> {
+    private final String name;
+    private final Function<List<String>, List<R>> batchCall;
+    private final int maxBatch;
+    private final long maxWaitMs;
+
+    private final LinkedBlockingQueue<Pending<R>> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService callers;
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong items = new AtomicLong(0);
+    private final AtomicLong duplicates = new AtomicLong(0);
+    private final AtomicLong failedBatches = new AtomicLong(0);
+
+    private static class Pending<R> {
+        final String input;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Pending(String input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * @param batchCall returns one result per input, in order, or null if the whole batch failed.
+     */
+    public MicroBatcher(String name, Function<List<String>, List<R>> batchCall, int maxBatch, long maxWaitMs) {
+        this.name = name;
+        this.batchCall = batchCall;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.callers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread collector = new Thread(this::collect, name + "-collector");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Blocks until the batch holding this input has been answered.
+     * @return the result for the input, or null if its batch failed or the caller was interrupted.
+     */
+    public R submit(String input) {
+        Pending<R> pending = new Pending<>(input);
+        queue.add(pending);
+        try {
+            return pending.result.get();
+        } catch (InterruptedException e) {
+            // the search was cancelled, the batch still completes for the others
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.err.println(name + " batcher failure: " + e.getCause());
+            return null;
+        }
+    }
+
+    private void collect() {
+        while (true) {
+            try {
+                List<Pending<R>> batch = new ArrayList<>();
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+                while (batch.size() < maxBatch) {
+                    Pending<R> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                callers.execute(() -> send(batch));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private void send(List<Pending<R>> batch) {
+        // input -> position in the request, identical inputs share one
+        Map<String, Integer> positions = new LinkedHashMap<>();
+        for (Pending<R> pending : batch) {
+            positions.putIfAbsent(pending.input, positions.size());
+        }
+        batches.incrementAndGet();
+        items.addAndGet(batch.size());
+        duplicates.addAndGet(batch.size() - positions.size());
+
+        List<R> results = null;
+        try {
+            results = batchCall.apply(new ArrayList<>(positions.keySet()));
+        } catch (Exception e) {
+            System.err.println(name + " batch call failed: " + e.getMessage());
+        }
+        if (results == null || results.size() != positions.size()) {
+            failedBatches.incrementAndGet();
+            results = null;
+        }
+        for (Pending<R> pending : batch) {
+            pending.result.complete(results == null ? null : results.get(positions.get(pending.input)));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long batchCount = batches.get();
+        stats.put("queued", queue.size());
+        stats.put("batches", batchCount);
+        stats.put("items", items.get());
+        stats.put("meanBatchSize", batchCount == 0 ? 0.0 : (double) items.get() / batchCount);
+        stats.put("duplicates", duplicates.get());
+        stats.put("failedBatches", failedBatches.get());
+        return stats;
+    }
+}
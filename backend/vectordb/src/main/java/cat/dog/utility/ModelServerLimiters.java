@@ -0,0 +1,46 @@
+package cat.dog.utility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The adaptive concurrency limits shared by every caller of the Python model server.
+ * Embedding and LLM analysis calls have separate limits, so cheap embeddings never
+ * wait behind multi-second generations.
+ */
+public class ModelServerLimiters {
+    private static final ModelServerLimiters INSTANCE = new ModelServerLimiters();
+
+    private final AdaptiveLimiter embed;
+    private final AdaptiveLimiter analyze;
+
+    private ModelServerLimiters() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        // the ceilings are per worker process, the pool as a whole can take one per worker
+        int workers = ModelServerPool.getInstance().size();
+        this.embed = new AdaptiveLimiter("embed", config.getEmbedLimitInitial(), 1, config.getEmbedLimitMax() * workers);
+        // starts at, and never exceeds, LLM_MAX_IN_FLIGHT concurrent analyses per worker; generation latency
+        // follows the output length rather than load, so only failed or timed out analyses lower it
+        int analyzeMax = config.getLlmMaxInFlight() * workers;
+        this.analyze = new AdaptiveLimiter("analyze", analyzeMax, 1, analyzeMax, false);
+    }
+
+    public static ModelServerLimiters getInstance() {
+        return INSTANCE;
+    }
+
+    public AdaptiveLimiter embed() {
+        return embed;
+    }
+
+    public AdaptiveLimiter analyze() {
+        return analyze;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("embed", embed.getStats());
+        stats.put("analyze", analyze.getStats());
+        return stats;
+    }
+}
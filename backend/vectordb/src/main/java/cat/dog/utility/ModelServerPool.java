@@ -0,0 +1,316 @@
+package cat.dog.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The python_server.py worker processes, one per port from MODEL_SERVER_BASE_PORT on.
+ * Every model call leases the healthy worker with the fewest outstanding requests and returns it when done.
+ * A supervisor thread per worker restarts its process when it exits, and a periodic /health check
+ * kills a worker that stopped answering so it gets restarted too.
+ * With MODEL_SERVER_UDS_DIR set every worker also listens on a Unix domain socket in that directory,
+ * which the embedding calls use over kept-alive connections.
+ * In a JVM that did not start() the pool (the importers, the main() tests) the workers are used as they are,
+ * with the default of one worker this is the old single server on port 8000.
+ */
+public class ModelServerPool {
+    private static final ModelServerPool INSTANCE = new ModelServerPool();
+
+    // a worker that was healthy is restarted after this many failed health checks in a row
+    private static final int MAX_FAILED_CHECKS = 3;
+    private static final long MIN_RESTART_DELAY_MS = 2000;
+    private static final long MAX_RESTART_DELAY_MS = 60000;
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final AtomicInteger nextStart = new AtomicInteger(0);
+    private volatile boolean started = false;
+    private volatile boolean stopping = false;
+
+    private ModelServerPool() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        int count = Math.max(1, config.getModelServerWorkers());
+        String socketDir = config.getModelServerUdsDir();
+        for (int i = 0; i < count; i++) {
+            int port = config.getModelServerBasePort() + i;
+            Path socketPath = socketDir == null || socketDir.isBlank()
+                    ? null
+                    : Paths.get(socketDir, "model-server-" + port + ".sock").toAbsolutePath();
+            workers.add(new Worker(port, socketPath));
+        }
+    }
+
+    public static ModelServerPool getInstance() {
+        return INSTANCE;
+    }
+
+    public int size() {
+        return workers.size();
+    }
+
+    /**
+     * Launches every worker process with the virtual environment's Python, plus their supervisors and the health checks.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        String projectRootPath = System.getProperty("user.dir");
+        File pythonDir = new File(projectRootPath, "python");
+        File pythonExec = new File(projectRootPath, ".venv/bin/python");
+        if (!pythonDir.exists()) {
+            System.err.println("❌ Error: Directory not found: " + pythonDir.getAbsolutePath());
+            return;
+        }
+        if (!pythonExec.exists()) {
+            System.err.println("❌ Error: Python interpreter not found: " + pythonExec.getAbsolutePath());
+            return;
+        }
+
+        for (Worker worker : workers) {
+            if (worker.unixClient != null) {
+                try {
+                    Files.createDirectories(worker.unixClient.getSocketPath().getParent());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            Thread supervisor = new Thread(() -> supervise(worker, pythonExec, pythonDir), "model-server-" + worker.port);
+            supervisor.setDaemon(true);
+            supervisor.start();
+        }
+
+        ScheduledExecutorService healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-server-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMs = RetrievalConfig.getInstance().getModelServerHealthIntervalMs();
+        healthChecks.scheduleWithFixedDelay(this::checkHealth, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopping = true;
+            healthChecks.shutdownNow();
+            for (Worker worker : workers) {
+                Process process = worker.process;
+                if (process != null && process.isAlive()) {
+                    System.out.println("🛑 Stopping Python Server on port " + worker.port + "...");
+                    process.destroy();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Blocks until at least one worker answers its health check, the others join the pool as soon as they do.
+     */
+    public void awaitReady(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            checkHealth();
+            if (workers.stream().anyMatch(worker -> worker.healthy)) {
+                return;
+            }
+            Thread.sleep(2000);
+        }
+        throw new RuntimeException("❌ Python server failed to start in time.");
+    }
+
+    /**
+     * Leases the healthy worker with the fewest outstanding requests; if none is known to be healthy, any worker.
+     * Every lease must be given back with release().
+     */
+    public Worker acquire() {
+        Worker best = pickLeastLoaded(true);
+        if (best == null) {
+            best = pickLeastLoaded(false);
+        }
+        best.outstanding.incrementAndGet();
+        best.requests.incrementAndGet();
+        return best;
+    }
+
+    /**
+     * @param reachable false if the worker could not be connected to, it then gets no more requests until its next good health check.
+     */
+    public void release(Worker worker, boolean reachable) {
+        worker.outstanding.decrementAndGet();
+        if (!reachable && started) {
+            worker.healthy = false;
+        }
+    }
+
+    private Worker pickLeastLoaded(boolean healthyOnly) {
+        // start the scan at a rotating index so ties are spread instead of always hitting the first worker
+        int start = Math.floorMod(nextStart.getAndIncrement(), workers.size());
+        Worker best = null;
+        for (int i = 0; i < workers.size(); i++) {
+            Worker worker = workers.get((start + i) % workers.size());
+            if (healthyOnly && !worker.healthy) {
+                continue;
+            }
+            if (best == null || worker.outstanding.get() < best.outstanding.get()) {
+                best = worker;
+            }
+        }
+        return best;
+    }
+
+    private void supervise(Worker worker, File pythonExec, File pythonDir) {
+        long restartDelayMs = MIN_RESTART_DELAY_MS;
+        while (!stopping) {
+            try {
+                System.out.println("🐍 Launching Python Server on port " + worker.port + "...");
+                // Command: .venv/bin/python python_server.py <port> [<unix socket path>]
+                // WorkDir: python/ (So it can find ../models)
+                List<String> command = new ArrayList<>(List.of(pythonExec.getAbsolutePath(), "python_server.py", String.valueOf(worker.port)));
+                if (worker.unixClient != null) {
+                    command.add(worker.unixClient.getSocketPath().toString());
+                }
+                ProcessBuilder pb = new ProcessBuilder(command);
+                pb.directory(pythonDir);
+                pb.inheritIO();
+                if (workers.size() > 1 && !pb.environment().containsKey("OMP_NUM_THREADS")) {
+                    // share the cores between the workers instead of every worker using all of them;
+                    // the Python modules only default these to 1 when they are not set
+                    String threads = String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / workers.size()));
+                    pb.environment().put("OMP_NUM_THREADS", threads);
+                    pb.environment().putIfAbsent("MKL_NUM_THREADS", threads);
+                }
+
+                long launchedAt = System.currentTimeMillis();
+                worker.process = pb.start();
+                int exitCode = worker.process.waitFor();
+                worker.healthy = false;
+                if (stopping) {
+                    return;
+                }
+                System.err.println("❌ Python Server on port " + worker.port + " exited with code: " + exitCode);
+
+                // a worker that ran for a while gets restarted quickly, one that keeps crashing is backed off
+                if (worker.wasHealthy && System.currentTimeMillis() - launchedAt > MAX_RESTART_DELAY_MS) {
+                    restartDelayMs = MIN_RESTART_DELAY_MS;
+                }
+                worker.wasHealthy = false;
+                worker.failedChecks = 0;
+                worker.restarts.incrementAndGet();
+                Thread.sleep(restartDelayMs);
+                restartDelayMs = Math.min(MAX_RESTART_DELAY_MS, restartDelayMs * 2);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    private void checkHealth() {
+        for (Worker worker : workers) {
+            if (isUp(worker)) {
+                if (!worker.healthy) {
+                    System.out.println("✅ Python Server on port " + worker.port + " is Ready!");
+                }
+                worker.healthy = true;
+                worker.wasHealthy = true;
+                worker.failedChecks = 0;
+                continue;
+            }
+            worker.healthy = false;
+            // a worker still loading its models has never been healthy, leave it alone
+            if (worker.wasHealthy && ++worker.failedChecks >= MAX_FAILED_CHECKS) {
+                Process process = worker.process;
+                if (process != null && process.isAlive()) {
+                    System.err.println("❌ Python Server on port " + worker.port + " stopped answering, restarting it");
+                    process.destroyForcibly();
+                }
+                worker.failedChecks = 0;
+            }
+        }
+    }
+
+    private boolean isUp(Worker worker) {
+        try {
+            URL url = new URL(worker.url("/health"));
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(1000);
+            conn.setReadTimeout(2000);
+            return conn.getResponseCode() == 200;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("started", started);
+        List<Map<String, Object>> workerStats = new ArrayList<>();
+        for (Worker worker : workers) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("port", worker.port);
+            map.put("healthy", worker.healthy);
+            map.put("outstanding", worker.outstanding.get());
+            map.put("requests", worker.requests.get());
+            map.put("restarts", worker.restarts.get());
+            if (worker.unixClient != null) {
+                map.put("unixSocket", worker.unixClient.getStats());
+            }
+            workerStats.add(map);
+        }
+        stats.put("workers", workerStats);
+        return stats;
+    }
+
+    public static class Worker {
+        private final int port;
+        private final String baseUrl;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private final AtomicLong requests = new AtomicLong(0);
+        private final AtomicLong restarts = new AtomicLong(0);
+        private final UnixSocketHttpClient unixClient;
+        private volatile Process process;
+        private volatile boolean healthy = false;
+        private volatile boolean wasHealthy = false;
+        private int failedChecks = 0;
+
+        private Worker(int port, Path socketPath) {
+            this.port = port;
+            this.baseUrl = "http://127.0.0.1:" + port;
+            this.unixClient = socketPath == null ? null : new UnixSocketHttpClient(socketPath,
+                    RetrievalConfig.getInstance().getEmbedReadTimeoutMs());
+        }
+
+        public String url(String path) {
+            return baseUrl + path;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return the client of the worker's Unix domain socket, or null if it has none (not configured, or not listening yet).
+         */
+        public UnixSocketHttpClient unixClient() {
+            return unixClient != null && Files.exists(unixClient.getSocketPath()) ? unixClient : null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package cat.dog.utility;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+
+/**
+ * The MobileCLIP image encoder run in-process: OpenCV decodes the image and applies MobileCLIP's eval transform
+ * (shorter side resized to the model resolution, center crop, RGB scaled to [0, 1], no mean/std normalization),
+ * then ONNX Runtime runs the model exported by python/export_onnx.py and the embedding is L2-normalized.
+ * The input tensors are filled in pooled direct buffers, so a batch allocates no pixel or tensor arrays.
+ * Pixels can differ slightly from PIL's antialiased bilinear resize; INTER_AREA is used when shrinking to stay close to it.
+ */
+public class OnnxImageEncoder {
+    private static OnnxImageEncoder instance;
+    private static boolean loadAttempted = false;
+
+    private final OnnxSessionPool sessions;
+    private final int size;
+    private final int maxBatch;
+    private final BlockingQueue<Buffers> buffers;
+
+    private final AtomicLong images = new AtomicLong(0);
+    private final AtomicLong unreadable = new AtomicLong(0);
+
+    // the input tensor of a batch and the scratch array one cropped image is read into
+    private static class Buffers {
+        final FloatBuffer tensor;
+        final byte[] pixels;
+
+        Buffers(int maxBatch, int size) {
+            this.tensor = ByteBuffer.allocateDirect(maxBatch * 3 * size * size * Float.BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            this.pixels = new byte[size * size * 3];
+        }
+    }
+
+    private OnnxImageEncoder(String modelPath, int sessionCount, int size, int maxBatch) throws Exception {
+        this.sessions = new OnnxSessionPool(modelPath, sessionCount);
+        this.size = size;
+        this.maxBatch = Math.max(1, maxBatch);
+        // one set per session is all that can be in use at once
+        this.buffers = new ArrayBlockingQueue<>(sessions.getSessionCount());
+        for (int i = 0; i < sessions.getSessionCount(); i++) {
+            buffers.add(new Buffers(this.maxBatch, size));
+        }
+    }
+
+    /**
+     * @return the encoder, loaded on first use; null if CLIP_IMAGE_ENCODER is not "onnx" or the model or OpenCV could not be
+     * loaded, in which case image embeddings keep going to the Python server.
+     */
+    public static synchronized OnnxImageEncoder getInstance() {
+        if (loadAttempted) {
+            return instance;
+        }
+        loadAttempted = true;
+
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        if (!"onnx".equalsIgnoreCase(config.getClipImageEncoder())) {
+            return null;
+        }
+        if (!new File(config.getClipImageOnnxModel()).exists()) {
+            System.err.println("❌ ONNX image encoder model missing (" + config.getClipImageOnnxModel()
+                    + "), run python/export_onnx.py. Using the Python server for image embeddings.");
+            return null;
+        }
+        if (!OpenCvLoader.load()) {
+            System.err.println("❌ OpenCV unavailable, using the Python server for image embeddings.");
+            return null;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            instance = new OnnxImageEncoder(config.getClipImageOnnxModel(), config.getOnnxImageSessions(),
+                    config.getClipImageSize(), config.getEmbedMicroBatchMax());
+            System.out.println("✅ ONNX image encoder loaded in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("❌ Failed to load the ONNX image encoder, using the Python server for image embeddings.");
+        }
+        return instance;
+    }
+
+    /**
+     * Reads and embeds the images at the given paths.
+     * @return one L2-normalized embedding per path, in order (null for an image that cannot be read), or null if inference failed.
+     */
+    public List<float[]> encodeFiles(List<String> paths) {
+        List<Mat> decoded = new ArrayList<>(paths.size());
+        try {
+            for (String path : paths) {
+                Mat image = Imgcodecs.imread(path, Imgcodecs.IMREAD_COLOR);
+                decoded.add(image.empty() ? null : image);
+            }
+            return encode(decoded);
+        } finally {
+            decoded.forEach(image -> {
+                if (image != null) image.release();
+            });
+        }
+    }
+
+    /**
+     * @param bgrImages decoded BGR images as OpenCV reads them; a null entry gets a null embedding.
+     * @return one L2-normalized embedding per image, in order, or null if inference failed or the caller was interrupted.
+     */
+    public List<float[]> encode(List<Mat> bgrImages) {
+        List<float[]> embeddings = new ArrayList<>(bgrImages.size());
+        for (int start = 0; start < bgrImages.size(); start += maxBatch) {
+            List<float[]> chunk = encodeChunk(bgrImages.subList(start, Math.min(start + maxBatch, bgrImages.size())));
+            if (chunk == null) {
+                return null;
+            }
+            embeddings.addAll(chunk);
+        }
+        return embeddings;
+    }
+
+    private List<float[]> encodeChunk(List<Mat> bgrImages) {
+        List<Integer> present = new ArrayList<>();
+        for (int i = 0; i < bgrImages.size(); i++) {
+            if (bgrImages.get(i) != null) {
+                present.add(i);
+            } else {
+                unreadable.incrementAndGet();
+            }
+        }
+        List<float[]> embeddings = new ArrayList<>(bgrImages.size());
+        for (int i = 0; i < bgrImages.size(); i++) {
+            embeddings.add(null);
+        }
+        if (present.isEmpty()) {
+            return embeddings;
+        }
+
+        Buffers batch;
+        try {
+            batch = buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            FloatBuffer tensor = batch.tensor;
+            tensor.clear();
+            for (int index : present) {
+                preprocess(bgrImages.get(index), tensor, batch.pixels);
+            }
+            tensor.flip();
+            long[] shape = {present.size(), 3, size, size};
+            try (OnnxTensor input = OnnxTensor.createTensor(sessions.getEnvironment(), tensor, shape)) {
+                float[][] features = sessions.run(input);
+                for (int row = 0; row < present.size(); row++) {
+                    embeddings.set(present.get(row), OnnxSessionPool.normalize(features[row]));
+                }
+            }
+            images.addAndGet(present.size());
+            return embeddings;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (OrtException e) {
+            System.err.println("ONNX image encoder failure: " + e.getMessage());
+            return null;
+        } finally {
+            buffers.add(batch);
+        }
+    }
+
+    /**
+     * Appends the image to the buffer as a 3 x size x size RGB plane-major float tensor in [0, 1].
+     */
+    private void preprocess(Mat bgr, FloatBuffer buffer, byte[] pixels) {
+        Mat rgb = new Mat();
+        Mat resized = new Mat();
+        try {
+            Imgproc.cvtColor(bgr, rgb, Imgproc.COLOR_BGR2RGB);
+
+            // torchvision Resize(size): the shorter side becomes size, the longer one keeps the aspect ratio (truncated)
+            int width = rgb.cols();
+            int height = rgb.rows();
+            int newWidth = width <= height ? size : (int) ((long) size * width / height);
+            int newHeight = width <= height ? (int) ((long) size * height / width) : size;
+            int interpolation = newWidth < width ? Imgproc.INTER_AREA : Imgproc.INTER_LINEAR;
+            Imgproc.resize(rgb, resized, new Size(newWidth, newHeight), 0, 0, interpolation);
+
+            // torchvision CenterCrop(size)
+            int top = (int) Math.round((newHeight - size) / 2.0);
+            int left = (int) Math.round((newWidth - size) / 2.0);
+            Mat cropped = resized.submat(new Rect(left, top, size, size));
+            cropped.get(0, 0, pixels);
+            cropped.release();
+
+            int base = buffer.position();
+            int plane = size * size;
+            for (int p = 0; p < plane; p++) {
+                buffer.put(base + p, (pixels[p * 3] & 0xff) / 255.0f);
+                buffer.put(base + plane + p, (pixels[p * 3 + 1] & 0xff) / 255.0f);
+                buffer.put(base + 2 * plane + p, (pixels[p * 3 + 2] & 0xff) / 255.0f);
+            }
+            buffer.position(base + 3 * plane);
+        } finally {
+            rgb.release();
+            resized.release();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(sessions.getStats());
+        stats.put("images", images.get());
+        stats.put("unreadable", unreadable.get());
+        return stats;
+    }
+}
@@ -0,0 +1,94 @@
+package cat.dog.utility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+/**
+ * A few ONNX Runtime sessions of one model, each with an equal share of the cores, so concurrent batches
+ * run side by side instead of all competing for the intra-op threads of a single session.
+ * The model must have one input and a [batch, dim] float output.
+ */
+public class OnnxSessionPool {
+    private final OrtEnvironment env;
+    private final BlockingQueue<OrtSession> sessions;
+    private final int sessionCount;
+    private final String inputName;
+
+    private final AtomicLong runs = new AtomicLong(0);
+    private final AtomicLong totalMs = new AtomicLong(0);
+
+    public OnnxSessionPool(String modelPath, int sessionCount) throws OrtException {
+        this.env = OrtEnvironment.getEnvironment();
+        this.sessionCount = Math.max(1, sessionCount);
+        this.sessions = new ArrayBlockingQueue<>(this.sessionCount);
+
+        int threadsPerSession = Math.max(1, Runtime.getRuntime().availableProcessors() / this.sessionCount);
+        for (int i = 0; i < this.sessionCount; i++) {
+            OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+            options.setIntraOpNumThreads(threadsPerSession);
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            sessions.add(env.createSession(modelPath, options));
+        }
+        this.inputName = sessions.peek().getInputNames().iterator().next();
+    }
+
+    public OrtEnvironment getEnvironment() {
+        return env;
+    }
+
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Runs the input on the next free session, waiting for one if all are busy.
+     * @return the model output, one row per batch entry.
+     * @throws InterruptedException if the caller was interrupted while waiting for a session.
+     */
+    public float[][] run(OnnxTensor input) throws OrtException, InterruptedException {
+        OrtSession session = sessions.take();
+        long start = System.currentTimeMillis();
+        try (OrtSession.Result result = session.run(Map.of(inputName, input))) {
+            return (float[][]) result.get(0).getValue();
+        } finally {
+            sessions.add(session);
+            runs.incrementAndGet();
+            totalMs.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long runCount = runs.get();
+        stats.put("sessions", sessionCount);
+        stats.put("idleSessions", sessions.size());
+        stats.put("runs", runCount);
+        stats.put("meanRunMs", runCount == 0 ? 0 : totalMs.get() / runCount);
+        return stats;
+    }
+
+    /**
+     * L2-normalizes the vector in place, like MobileCLIPEmbedder does with normalize=True.
+     */
+    public static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float value : vector) {
+            sum += value * value;
+        }
+        float norm = (float) Math.sqrt(sum);
+        if (norm > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+        return vector;
+    }
+}
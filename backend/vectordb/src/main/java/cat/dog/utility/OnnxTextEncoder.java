@@ -0,0 +1,93 @@
+package cat.dog.utility;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+
+/**
+ * The MobileCLIP text encoder run in-process with ONNX Runtime, so text embeddings need no call to the Python server.
+ * Same tokenizer, same model (exported by python/export_onnx.py) and the same L2 normalization as MobileCLIPEmbedder.
+ */
+public class OnnxTextEncoder {
+    private static OnnxTextEncoder instance;
+    private static boolean loadAttempted = false;
+
+    private final ClipTokenizer tokenizer;
+    private final OnnxSessionPool sessions;
+
+    private final AtomicLong texts = new AtomicLong(0);
+
+    private OnnxTextEncoder(String modelPath, String vocabPath, int sessionCount) throws Exception {
+        this.tokenizer = new ClipTokenizer(vocabPath);
+        this.sessions = new OnnxSessionPool(modelPath, sessionCount);
+    }
+
+    /**
+     * @return the encoder, loaded on first use; null if CLIP_TEXT_ENCODER is not "onnx" or the model could not be loaded,
+     * in which case text embeddings keep going to the Python server.
+     */
+    public static synchronized OnnxTextEncoder getInstance() {
+        if (loadAttempted) {
+            return instance;
+        }
+        loadAttempted = true;
+
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        if (!"onnx".equalsIgnoreCase(config.getClipTextEncoder())) {
+            return null;
+        }
+        if (!new File(config.getClipTextOnnxModel()).exists() || !new File(config.getClipBpeVocab()).exists()) {
+            System.err.println("❌ ONNX text encoder files missing (" + config.getClipTextOnnxModel() + ", " + config.getClipBpeVocab()
+                    + "), run python/export_onnx.py. Using the Python server for text embeddings.");
+            return null;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            instance = new OnnxTextEncoder(config.getClipTextOnnxModel(), config.getClipBpeVocab(), config.getOnnxTextSessions());
+            System.out.println("✅ ONNX text encoder loaded in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("❌ Failed to load the ONNX text encoder, using the Python server for text embeddings.");
+        }
+        return instance;
+    }
+
+    /**
+     * @return one L2-normalized embedding per text, in order, or null if inference failed or the caller was interrupted.
+     */
+    public List<float[]> encode(List<String> inputs) {
+        long[][] tokens = new long[inputs.size()][];
+        for (int i = 0; i < inputs.size(); i++) {
+            tokens[i] = tokenizer.tokenize(inputs.get(i));
+        }
+
+        try (OnnxTensor input = OnnxTensor.createTensor(sessions.getEnvironment(), tokens)) {
+            float[][] features = sessions.run(input);
+            List<float[]> embeddings = new ArrayList<>(features.length);
+            for (float[] feature : features) {
+                embeddings.add(OnnxSessionPool.normalize(feature));
+            }
+            texts.addAndGet(inputs.size());
+            return embeddings;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (OrtException e) {
+            System.err.println("ONNX text encoder failure: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(sessions.getStats());
+        stats.put("texts", texts.get());
+        return stats;
+    }
+}
@@ -0,0 +1,29 @@
+package cat.dog.utility;
+
+/**
+ * Loads the OpenCV native library bundled in the org.openpnp:opencv jar, once per JVM.
+ */
+public class OpenCvLoader {
+    private static boolean attempted = false;
+    private static boolean loaded = false;
+
+    private OpenCvLoader() {
+
+    }
+
+    /**
+     * @return true if OpenCV can be used.
+     */
+    public static synchronized boolean load() {
+        if (!attempted) {
+            attempted = true;
+            try {
+                nu.pattern.OpenCV.loadLocally();
+                loaded = true;
+            } catch (Throwable t) {
+                System.err.println("❌ Failed to load OpenCV: " + t.getMessage());
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,103 @@
+package cat.dog.utility;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caches the LLM analysis of a text query, keyed by the normalized query text.
+ * A bounded LRU with TTL sits in memory, backed by one JSON file per query on disk
+ * so popular queries stay cached across restarts. Failed analyses are never stored.
+ */
+public class QueryAnalysisCache {
+    private static final QueryAnalysisCache INSTANCE = new QueryAnalysisCache();
+
+    private static final TypeReference<Map<String, Object>> ANALYSIS_TYPE = new TypeReference<>() { };
+
+    private final LruTtlCache<String, Map<String, Object>> memory;
+    private final DiskCacheTier<Map<String, Object>> disk;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private QueryAnalysisCache() {
+        RetrievalConfig config = RetrievalConfig.getInstance();
+        long ttlMs = config.getAnalysisCacheTtlMs();
+        this.memory = new LruTtlCache<>("llmAnalysis", config.getAnalysisCacheMaxEntries(), ttlMs);
+        this.disk = new DiskCacheTier<>("LLM analysis cache", config.getAnalysisCacheDir(), ".json",
+                config.getAnalysisCacheDiskMaxEntries(), ttlMs, new JsonSerializer());
+    }
+
+    public static QueryAnalysisCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Trims, collapses whitespace and lower-cases the query, so trivially different spellings share an entry.
+     */
+    public static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        String text = Normalizer.normalize(query, Normalizer.Form.NFKC);
+        return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return a copy of the cached analysis, or null on a miss.
+     */
+    public Map<String, Object> get(String query) {
+        String key = normalize(query);
+        Map<String, Object> cached = memory.get(key);
+        if (cached != null) {
+            return new LinkedHashMap<>(cached);
+        }
+        DiskCacheTier.Entry<Map<String, Object>> fromDisk = disk.read(key);
+        if (fromDisk == null) {
+            return null;
+        }
+        memory.put(key, fromDisk.getValue(), fromDisk.getStoredAt());
+        return new LinkedHashMap<>(fromDisk.getValue());
+    }
+
+    public void put(String query, Map<String, Object> analysis) {
+        if (analysis == null || analysis.isEmpty() || analysis.containsKey("error")) {
+            return;
+        }
+        String key = normalize(query);
+        Map<String, Object> copy = new LinkedHashMap<>(analysis);
+        long storedAt = System.currentTimeMillis();
+        memory.put(key, copy, storedAt);
+        disk.write(key, copy, storedAt);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("memory", memory.getStats());
+        stats.put("disk", disk.getStats());
+        return stats;
+    }
+
+    // {"query": ..., "storedAt": ..., "analysis": {...}}
+    private class JsonSerializer implements DiskCacheTier.Serializer<Map<String, Object>> {
+        @Override
+        public byte[] write(String key, Map<String, Object> analysis, long storedAt) throws IOException {
+            Map<String, Object> stored = new LinkedHashMap<>();
+            stored.put("query", key);
+            stored.put("storedAt", storedAt);
+            stored.put("analysis", analysis);
+            return objectMapper.writeValueAsBytes(stored);
+        }
+
+        @Override
+        public DiskCacheTier.Entry<Map<String, Object>> read(byte[] bytes) throws IOException {
+            JsonNode stored = objectMapper.readTree(bytes);
+            return new DiskCacheTier.Entry<>(stored.get("query").asText(),
+                    objectMapper.convertValue(stored.get("analysis"), ANALYSIS_TYPE), stored.get("storedAt").asLong());
+        }
+    }
+}
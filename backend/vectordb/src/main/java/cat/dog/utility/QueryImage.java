@@ -0,0 +1,256 @@
+package cat.dog.utility;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * One query image, owned by the request that searches with it: the uploaded bytes and/or the decoded BGR Mat,
+ * decoded once and shared by the embedding and cleaning stages.
+ * Uploads in a format OpenCV or cv2 cannot read (e.g. GIF) are re-encoded to PNG through ImageIO, as they always were.
+ * A file is only written, into a scratch directory private to this image, when a stage that reads paths needs one
+ * (the Python model server or text removal script). close() releases the Mat and deletes the scratch directory.
+ * Thread safe.
+ */
+public class QueryImage implements AutoCloseable {
+    private static final String SCRATCH_ROOT = "received_images";
+
+    private final byte[] encoded;
+    // file extension of the encoded bytes
+    private final String format;
+    private Mat decoded;
+    private String file;
+    private Path scratchDir;
+    private String contentHash;
+
+    private QueryImage(byte[] encoded, String format, Mat decoded, String file) {
+        this.encoded = encoded;
+        this.format = format;
+        this.decoded = decoded;
+        this.file = file;
+    }
+
+    /**
+     * @return the uploaded image, or null if the string is not a base64 encoded image.
+     */
+    public static QueryImage fromBase64(String imageBase64) {
+        byte[] bytes = Base64ImageConverter.decodeBase64(imageBase64);
+        if (bytes == null) {
+            return null;
+        }
+        String format = formatOf(bytes);
+        if (format != null) {
+            QueryImage image = new QueryImage(bytes, format, null, null);
+            // decoded right away, it is needed by every in-process stage anyway
+            if (OpenCvLoader.load() ? image.getMat() != null : isReadableByImageIO(bytes)) {
+                return image;
+            }
+        }
+        byte[] png = reencodeAsPng(bytes);
+        if (png == null) {
+            return null;
+        }
+        QueryImage image = new QueryImage(png, "png", null, null);
+        if (OpenCvLoader.load() && image.getMat() == null) {
+            return null;
+        }
+        return image;
+    }
+
+    /**
+     * @param bgr a decoded image, owned and released by the returned QueryImage.
+     */
+    public static QueryImage ofMat(Mat bgr) {
+        return new QueryImage(null, null, bgr, null);
+    }
+
+    /**
+     * @param path an image file owned by the caller, it is not deleted on close().
+     */
+    public static QueryImage ofFile(String path) {
+        return new QueryImage(null, null, null, new File(path).getAbsolutePath());
+    }
+
+    /**
+     * @return the bytes as uploaded, or null for an image built from a Mat or a file.
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return the decoded BGR image, shared and not to be released by the caller; null if OpenCV is unavailable
+     * or the image cannot be decoded.
+     */
+    public synchronized Mat getMat() {
+        if (decoded == null && OpenCvLoader.load()) {
+            Mat mat;
+            if (encoded != null) {
+                MatOfByte buffer = new MatOfByte(encoded);
+                mat = Imgcodecs.imdecode(buffer, Imgcodecs.IMREAD_COLOR);
+                buffer.release();
+            } else {
+                mat = Imgcodecs.imread(file, Imgcodecs.IMREAD_COLOR);
+            }
+            if (mat.empty()) {
+                mat.release();
+                return null;
+            }
+            decoded = mat;
+        }
+        return decoded;
+    }
+
+    /**
+     * @return the SHA-256 of the decoded pixels and their dimensions, so the same picture hashes the same whatever
+     * its file format or metadata; of the uploaded bytes when the image cannot be decoded in-process; null if neither is available.
+     */
+    public synchronized String getContentHash() {
+        if (contentHash != null) {
+            return contentHash;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Mat bgr = getMat();
+            if (bgr != null) {
+                digest.update(ByteBuffer.allocate(12).putInt(bgr.rows()).putInt(bgr.cols()).putInt(bgr.type()).array());
+                // row by row, a decoded image is not necessarily continuous and a full copy is not needed
+                byte[] row = new byte[(int) (bgr.cols() * bgr.elemSize())];
+                for (int r = 0; r < bgr.rows(); r++) {
+                    bgr.get(r, 0, row);
+                    digest.update(row);
+                }
+                contentHash = "pixels:" + HexFormat.of().formatHex(digest.digest());
+            } else if (encoded != null) {
+                contentHash = "bytes:" + HexFormat.of().formatHex(digest.digest(encoded));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            System.err.println("Could not hash query image: " + e.getMessage());
+        }
+        return contentHash;
+    }
+
+    /**
+     * @return the absolute path of a file holding the image, written to the scratch directory on first use;
+     * null if it could not be written.
+     */
+    public synchronized String getFile() {
+        if (file != null) {
+            return file;
+        }
+        try {
+            String path = scratchPath(encoded != null ? "query_image." + format : "query_image.png");
+            if (encoded != null) {
+                Files.write(Paths.get(path), encoded);
+            } else if (!Imgcodecs.imwrite(path, decoded)) {
+                throw new IOException("Could not write image: " + path);
+            }
+            file = path;
+            return file;
+        } catch (IOException e) {
+            System.err.println("Could not write query image scratch file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return an absolute path with the given name inside this image's scratch directory, which is created on first use.
+     */
+    public synchronized String scratchPath(String name) throws IOException {
+        if (scratchDir == null) {
+            Path root = Files.createDirectories(Paths.get(SCRATCH_ROOT));
+            scratchDir = Files.createTempDirectory(root, "query-");
+        }
+        return scratchDir.resolve(name).toAbsolutePath().toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (decoded != null) {
+            decoded.release();
+            decoded = null;
+        }
+        if (scratchDir != null) {
+            try (Stream<Path> paths = Files.walk(scratchDir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException e) {
+                System.err.println("Could not delete query scratch directory " + scratchDir + ": " + e.getMessage());
+            }
+            scratchDir = null;
+        }
+    }
+
+    /**
+     * @return the extension of an image format both OpenCV and the Python scripts read, from the file signature;
+     * null for any other content.
+     */
+    private static String formatOf(byte[] bytes) {
+        if (startsWith(bytes, 0, 0x89, 'P', 'N', 'G')) {
+            return "png";
+        }
+        if (startsWith(bytes, 0, 0xFF, 0xD8, 0xFF)) {
+            return "jpg";
+        }
+        if (startsWith(bytes, 0, 'B', 'M')) {
+            return "bmp";
+        }
+        if (startsWith(bytes, 0, 'R', 'I', 'F', 'F') && startsWith(bytes, 8, 'W', 'E', 'B', 'P')) {
+            return "webp";
+        }
+        if (startsWith(bytes, 0, 'I', 'I', 0x2A, 0x00) || startsWith(bytes, 0, 'M', 'M', 0x00, 0x2A)) {
+            return "tiff";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int... signature) {
+        if (bytes.length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // null if ImageIO cannot read the bytes either
+    private static byte[] reencodeAsPng(byte[] bytes) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image == null) {
+                return null;
+            }
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            return ImageIO.write(image, "png", png) ? png.toByteArray() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isReadableByImageIO(byte[] bytes) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(bytes)) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package cat.dog.utility;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Removes the text of a meme image, in-process with MemeTextRemover when it is enabled,
+ * otherwise with a remove_meme_text.py process per call.
+ */
 public class RemoveMemeText {
 
     private static final String PYTHON_PATH =
@@ -11,6 +19,64 @@ public class RemoveMemeText {
             "./python/remove_meme_text.py"; // relative path to script
 
     public static void clean(String inputPath, String outputPath) {
+        MemeTextRemover remover = MemeTextRemover.getInstance();
+        if (remover != null) {
+            cleanInProcess(remover, inputPath, outputPath);
+        } else {
+            cleanWithPython(inputPath, outputPath);
+        }
+    }
+
+    /**
+     * Removes the text of a query image, in memory with MemeTextRemover, otherwise through files in the image's scratch directory.
+     * @return the cleaned image, closed by the caller; it must not outlive the input, whose scratch directory may hold its file.
+     */
+    public static QueryImage clean(QueryImage image) {
+        MemeTextRemover remover = MemeTextRemover.getInstance();
+        Mat bgr = remover != null ? image.getMat() : null;
+        if (bgr != null) {
+            try {
+                return QueryImage.ofMat(remover.clean(bgr));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while removing text.", e);
+            }
+        }
+
+        String inputPath = image.getFile();
+        if (inputPath == null) {
+            throw new RuntimeException("Could not write the query image for text removal.");
+        }
+        try {
+            String outputPath = image.scratchPath("cleaned_query_image.png");
+            cleanWithPython(inputPath, outputPath);
+            return QueryImage.ofFile(outputPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create the scratch directory for text removal.", e);
+        }
+    }
+
+    private static void cleanInProcess(MemeTextRemover remover, String inputPath, String outputPath) {
+        Mat image = Imgcodecs.imread(inputPath, Imgcodecs.IMREAD_COLOR);
+        if (image.empty()) {
+            throw new RuntimeException("Could not load image: " + inputPath);
+        }
+        Mat cleaned = null;
+        try {
+            cleaned = remover.clean(image);
+            if (!Imgcodecs.imwrite(outputPath, cleaned)) {
+                throw new RuntimeException("Could not write image: " + outputPath);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while removing text.", e);
+        } finally {
+            image.release();
+            if (cleaned != null) cleaned.release();
+        }
+    }
+
+    private static void cleanWithPython(String inputPath, String outputPath) {
         try {
             ProcessBuilder pb = new ProcessBuilder(
                     PYTHON_PATH,
@@ -0,0 +1,229 @@
+package cat.dog.utility;
+
+import io.github.cdimascio.dotenv.Dotenv;
+
+public class RetrievalConfig {
+    private static final RetrievalConfig INSTANCE = new RetrievalConfig();
+
+    // Time budget (in ms) of each retrieval leg, counted from the moment the leg is started
+    private final long faceLegTimeoutMs;
+    private final long captionLegTimeoutMs;
+    private final long descriptiveLegTimeoutMs;
+    private final long fallbackLegTimeoutMs;
+
+    // Budget of the /analyze call and the number of calls allowed in flight before the LLM is bypassed
+    private final long llmTimeoutMs;
+    private final int llmMaxInFlight;
+    // Read the analysis from /analyze_stream so legs can start before the LLM has finished
+    private final boolean llmStreaming;
+
+    // LLM analysis cache: in-memory LRU bounds, entry lifetime and the directory of the on-disk tier
+    private final int analysisCacheMaxEntries;
+    private final int analysisCacheDiskMaxEntries;
+    private final long analysisCacheTtlMs;
+    private final String analysisCacheDir;
+    // Query image embeddings by pixel content: memory budget, disk tier size (0 = memory only), TTL and directory
+    private final int imageEmbedCacheMaxMb;
+    private final int imageEmbedCacheDiskMaxEntries;
+    private final long imageEmbedCacheTtlMs;
+    private final String imageEmbedCacheDir;
+
+    // Cache of the final fused rankings of text and image searches
+    private final int resultCacheMaxEntries;
+    private final long resultCacheTtlMs;
+
+    // /searchByTextBatch: queries per /analyze_batch call, texts per /embed_text_batch call,
+    // budget of one batched analysis and the number of queries searched at the same time
+    private final int batchAnalyzeSize;
+    private final int batchEmbedSize;
+    private final long batchLlmTimeoutMs;
+    private final int batchSearchParallelism;
+
+    // Paged search: candidates kept per session, number of live sessions and their lifetime
+    private final int paginationDepth;
+    private final int sessionMaxEntries;
+    private final long sessionTtlMs;
+
+    // Admission control of /searchByText and /uploadImageBase64: requests running at once,
+    // requests allowed to wait for a slot, how long they may wait, and the Retry-After of a rejection
+    private final int textSearchMaxConcurrency;
+    private final int textSearchMaxQueue;
+    private final long textSearchMaxQueueWaitMs;
+    private final int imageSearchMaxConcurrency;
+    private final int imageSearchMaxQueue;
+    private final long imageSearchMaxQueueWaitMs;
+    // a /searchByTextBatch request runs many searches, so batches are admitted through a gate of their own
+    private final int batchSearchMaxConcurrency;
+    private final int batchSearchMaxQueue;
+    private final long batchSearchMaxQueueWaitMs;
+    private final int admissionRetryAfterS;
+
+    // Adaptive limit of concurrent /embed_* calls (starting and highest value) and how long a call may wait for it
+    private final int embedLimitInitial;
+    private final int embedLimitMax;
+    private final long embedQueueTimeoutMs;
+    // Longest wait for a model server worker to answer one embedding call, so a wedged worker fails the batch instead of blocking it
+    private final long embedReadTimeoutMs;
+    // Single embed calls merged into one batch call: most calls per batch and how long the first one waits for company
+    private final int embedMicroBatchMax;
+    private final long embedMicroBatchWaitMs;
+    // Ask the model server for embeddings as raw little-endian float32 instead of JSON arrays
+    private final boolean embedBinary;
+
+    // python_server.py worker processes, the port of the first one (the others follow it) and how often they are health checked
+    private final int modelServerWorkers;
+    private final int modelServerBasePort;
+    private final long modelServerHealthIntervalMs;
+    // Directory of the workers' Unix domain sockets for embedding calls, empty to use TCP only
+    private final String modelServerUdsDir;
+
+    // Text embeddings computed by the Python "server" or in-process with "onnx", the exported model and its BPE vocabulary,
+    // and how many ONNX sessions run side by side
+    private final String clipTextEncoder;
+    private final String clipTextOnnxModel;
+    private final String clipBpeVocab;
+    private final int onnxTextSessions;
+    // Image embeddings by the Python "server" or in-process with "onnx", the exported model, its input resolution and sessions
+    private final String clipImageEncoder;
+    private final String clipImageOnnxModel;
+    private final int clipImageSize;
+    private final int onnxImageSessions;
+    // Query image text removal by the Python "python" script or in-process with "opencv": the EAST model, its square
+    // input size (a multiple of 32), the detection confidence and how many detectors may run at once
+    private final String textRemover;
+    private final String eastModel;
+    private final int eastInputSize;
+    private final float eastConfidence;
+    private final int textRemoverInstances;
+
+    private RetrievalConfig() {
+        Dotenv dotenv = Dotenv.configure()
+            .directory("./")
+            .ignoreIfMissing()
+            .load();
+
+        System.out.println("Loading retrieval configuration from .env file...");
+
+        this.faceLegTimeoutMs = Long.parseLong(dotenv.get("FACE_LEG_TIMEOUT_MS", "20000"));
+        this.captionLegTimeoutMs = Long.parseLong(dotenv.get("CAPTION_LEG_TIMEOUT_MS", "3000"));
+        this.descriptiveLegTimeoutMs = Long.parseLong(dotenv.get("DESCRIPTIVE_LEG_TIMEOUT_MS", "8000"));
+        this.fallbackLegTimeoutMs = Long.parseLong(dotenv.get("FALLBACK_LEG_TIMEOUT_MS", "8000"));
+        this.llmTimeoutMs = Long.parseLong(dotenv.get("LLM_TIMEOUT_MS", "15000"));
+        this.llmMaxInFlight = Integer.parseInt(dotenv.get("LLM_MAX_IN_FLIGHT", "2"));
+        this.llmStreaming = Boolean.parseBoolean(dotenv.get("LLM_STREAMING", "true"));
+        this.analysisCacheMaxEntries = Integer.parseInt(dotenv.get("ANALYSIS_CACHE_MAX_ENTRIES", "1000"));
+        this.analysisCacheDiskMaxEntries = Integer.parseInt(dotenv.get("ANALYSIS_CACHE_DISK_MAX_ENTRIES", "20000"));
+        this.analysisCacheTtlMs = Long.parseLong(dotenv.get("ANALYSIS_CACHE_TTL_MS", "604800000"));
+        this.analysisCacheDir = dotenv.get("ANALYSIS_CACHE_DIR", "./cache/analysis");
+        this.imageEmbedCacheMaxMb = Integer.parseInt(dotenv.get("IMAGE_EMBED_CACHE_MAX_MB", "64"));
+        this.imageEmbedCacheDiskMaxEntries = Integer.parseInt(dotenv.get("IMAGE_EMBED_CACHE_DISK_MAX_ENTRIES", "20000"));
+        this.imageEmbedCacheTtlMs = Long.parseLong(dotenv.get("IMAGE_EMBED_CACHE_TTL_MS", "604800000"));
+        this.imageEmbedCacheDir = dotenv.get("IMAGE_EMBED_CACHE_DIR", "./cache/image_embeddings");
+        this.resultCacheMaxEntries = Integer.parseInt(dotenv.get("RESULT_CACHE_MAX_ENTRIES", "500"));
+        this.resultCacheTtlMs = Long.parseLong(dotenv.get("RESULT_CACHE_TTL_MS", "600000"));
+        this.batchAnalyzeSize = Integer.parseInt(dotenv.get("BATCH_ANALYZE_SIZE", "8"));
+        this.batchEmbedSize = Integer.parseInt(dotenv.get("BATCH_EMBED_SIZE", "64"));
+        this.batchLlmTimeoutMs = Long.parseLong(dotenv.get("BATCH_LLM_TIMEOUT_MS", "120000"));
+        this.batchSearchParallelism = Integer.parseInt(dotenv.get("BATCH_SEARCH_PARALLELISM", "8"));
+        this.paginationDepth = Integer.parseInt(dotenv.get("PAGINATION_DEPTH", "200"));
+        this.sessionMaxEntries = Integer.parseInt(dotenv.get("SESSION_MAX_ENTRIES", "1000"));
+        this.sessionTtlMs = Long.parseLong(dotenv.get("SESSION_TTL_MS", "900000"));
+        this.textSearchMaxConcurrency = Integer.parseInt(dotenv.get("TEXT_SEARCH_MAX_CONCURRENCY", "8"));
+        this.textSearchMaxQueue = Integer.parseInt(dotenv.get("TEXT_SEARCH_MAX_QUEUE", "16"));
+        this.textSearchMaxQueueWaitMs = Long.parseLong(dotenv.get("TEXT_SEARCH_MAX_QUEUE_WAIT_MS", "2000"));
+        this.imageSearchMaxConcurrency = Integer.parseInt(dotenv.get("IMAGE_SEARCH_MAX_CONCURRENCY", "4"));
+        this.imageSearchMaxQueue = Integer.parseInt(dotenv.get("IMAGE_SEARCH_MAX_QUEUE", "8"));
+        this.imageSearchMaxQueueWaitMs = Long.parseLong(dotenv.get("IMAGE_SEARCH_MAX_QUEUE_WAIT_MS", "2000"));
+        this.batchSearchMaxConcurrency = Integer.parseInt(dotenv.get("BATCH_SEARCH_MAX_CONCURRENCY", "2"));
+        this.batchSearchMaxQueue = Integer.parseInt(dotenv.get("BATCH_SEARCH_MAX_QUEUE", "4"));
+        this.batchSearchMaxQueueWaitMs = Long.parseLong(dotenv.get("BATCH_SEARCH_MAX_QUEUE_WAIT_MS", "2000"));
+        this.admissionRetryAfterS = Integer.parseInt(dotenv.get("ADMISSION_RETRY_AFTER_S", "2"));
+        this.embedLimitInitial = Integer.parseInt(dotenv.get("EMBED_LIMIT_INITIAL", "4"));
+        this.embedLimitMax = Integer.parseInt(dotenv.get("EMBED_LIMIT_MAX", "16"));
+        this.embedQueueTimeoutMs = Long.parseLong(dotenv.get("EMBED_QUEUE_TIMEOUT_MS", "5000"));
+        this.embedReadTimeoutMs = Long.parseLong(dotenv.get("EMBED_READ_TIMEOUT_MS", "30000"));
+        this.embedMicroBatchMax = Integer.parseInt(dotenv.get("EMBED_MICRO_BATCH_MAX", "16"));
+        this.embedMicroBatchWaitMs = Long.parseLong(dotenv.get("EMBED_MICRO_BATCH_WAIT_MS", "3"));
+        this.embedBinary = Boolean.parseBoolean(dotenv.get("EMBED_BINARY", "true"));
+        this.modelServerWorkers = Integer.parseInt(dotenv.get("MODEL_SERVER_WORKERS", "1"));
+        this.modelServerBasePort = Integer.parseInt(dotenv.get("MODEL_SERVER_BASE_PORT", "8000"));
+        this.modelServerHealthIntervalMs = Long.parseLong(dotenv.get("MODEL_SERVER_HEALTH_INTERVAL_MS", "5000"));
+        this.modelServerUdsDir = dotenv.get("MODEL_SERVER_UDS_DIR", "");
+        this.clipTextEncoder = dotenv.get("CLIP_TEXT_ENCODER", "server");
+        this.clipTextOnnxModel = dotenv.get("CLIP_TEXT_ONNX_MODEL", "./models/mobileclip_s0_text.onnx");
+        this.clipBpeVocab = dotenv.get("CLIP_BPE_VOCAB", "./models/bpe_simple_vocab_16e6.txt.gz");
+        this.onnxTextSessions = Integer.parseInt(dotenv.get("ONNX_TEXT_SESSIONS", "2"));
+        this.clipImageEncoder = dotenv.get("CLIP_IMAGE_ENCODER", "server");
+        this.clipImageOnnxModel = dotenv.get("CLIP_IMAGE_ONNX_MODEL", "./models/mobileclip_s0_image.onnx");
+        this.clipImageSize = Integer.parseInt(dotenv.get("CLIP_IMAGE_SIZE", "256"));
+        this.onnxImageSessions = Integer.parseInt(dotenv.get("ONNX_IMAGE_SESSIONS", "2"));
+        this.textRemover = dotenv.get("TEXT_REMOVER", "python");
+        this.eastModel = dotenv.get("EAST_MODEL", "./models/frozen_east_text_detection.pb");
+        this.eastInputSize = Integer.parseInt(dotenv.get("EAST_INPUT_SIZE", "640"));
+        this.eastConfidence = Float.parseFloat(dotenv.get("EAST_CONFIDENCE", "0.5"));
+        this.textRemoverInstances = Integer.parseInt(dotenv.get("TEXT_REMOVER_INSTANCES", "2"));
+    }
+
+    public static RetrievalConfig getInstance() {
+        return INSTANCE;
+    }
+
+    public long getFaceLegTimeoutMs() { return faceLegTimeoutMs; }
+    public long getCaptionLegTimeoutMs() { return captionLegTimeoutMs; }
+    public long getDescriptiveLegTimeoutMs() { return descriptiveLegTimeoutMs; }
+    public long getFallbackLegTimeoutMs() { return fallbackLegTimeoutMs; }
+    public long getLlmTimeoutMs() { return llmTimeoutMs; }
+    public int getLlmMaxInFlight() { return llmMaxInFlight; }
+    public boolean isLlmStreaming() { return llmStreaming; }
+    public int getAnalysisCacheMaxEntries() { return analysisCacheMaxEntries; }
+    public int getAnalysisCacheDiskMaxEntries() { return analysisCacheDiskMaxEntries; }
+    public long getAnalysisCacheTtlMs() { return analysisCacheTtlMs; }
+    public String getAnalysisCacheDir() { return analysisCacheDir; }
+    public int getImageEmbedCacheMaxMb() { return imageEmbedCacheMaxMb; }
+    public int getImageEmbedCacheDiskMaxEntries() { return imageEmbedCacheDiskMaxEntries; }
+    public long getImageEmbedCacheTtlMs() { return imageEmbedCacheTtlMs; }
+    public String getImageEmbedCacheDir() { return imageEmbedCacheDir; }
+    public int getResultCacheMaxEntries() { return resultCacheMaxEntries; }
+    public long getResultCacheTtlMs() { return resultCacheTtlMs; }
+    public int getBatchAnalyzeSize() { return batchAnalyzeSize; }
+    public int getBatchEmbedSize() { return batchEmbedSize; }
+    public long getBatchLlmTimeoutMs() { return batchLlmTimeoutMs; }
+    public int getBatchSearchParallelism() { return batchSearchParallelism; }
+    public int getPaginationDepth() { return paginationDepth; }
+    public int getSessionMaxEntries() { return sessionMaxEntries; }
+    public long getSessionTtlMs() { return sessionTtlMs; }
+    public int getTextSearchMaxConcurrency() { return textSearchMaxConcurrency; }
+    public int getTextSearchMaxQueue() { return textSearchMaxQueue; }
+    public long getTextSearchMaxQueueWaitMs() { return textSearchMaxQueueWaitMs; }
+    public int getImageSearchMaxConcurrency() { return imageSearchMaxConcurrency; }
+    public int getImageSearchMaxQueue() { return imageSearchMaxQueue; }
+    public long getImageSearchMaxQueueWaitMs() { return imageSearchMaxQueueWaitMs; }
+    public int getBatchSearchMaxConcurrency() { return batchSearchMaxConcurrency; }
+    public int getBatchSearchMaxQueue() { return batchSearchMaxQueue; }
+    public long getBatchSearchMaxQueueWaitMs() { return batchSearchMaxQueueWaitMs; }
+    public int getAdmissionRetryAfterS() { return admissionRetryAfterS; }
+    public int getEmbedLimitInitial() { return embedLimitInitial; }
+    public int getEmbedLimitMax() { return embedLimitMax; }
+    public long getEmbedQueueTimeoutMs() { return embedQueueTimeoutMs; }
+    public long getEmbedReadTimeoutMs() { return embedReadTimeoutMs; }
+    public int getEmbedMicroBatchMax() { return embedMicroBatchMax; }
+    public long getEmbedMicroBatchWaitMs() { return embedMicroBatchWaitMs; }
+    public boolean isEmbedBinary() { return embedBinary; }
+    public int getModelServerWorkers() { return modelServerWorkers; }
+    public int getModelServerBasePort() { return modelServerBasePort; }
+    public long getModelServerHealthIntervalMs() { return modelServerHealthIntervalMs; }
+    public String getModelServerUdsDir() { return modelServerUdsDir; }
+    public String getClipTextEncoder() { return clipTextEncoder; }
+    public String getClipTextOnnxModel() { return clipTextOnnxModel; }
+    public String getClipBpeVocab() { return clipBpeVocab; }
+    public int getOnnxTextSessions() { return onnxTextSessions; }
+    public String getClipImageEncoder() { return clipImageEncoder; }
+    public String getClipImageOnnxModel() { return clipImageOnnxModel; }
+    public int getClipImageSize() { return clipImageSize; }
+    public int getOnnxImageSessions() { return onnxImageSessions; }
+    public String getTextRemover() { return textRemover; }
+    public String getEastModel() { return eastModel; }
+    public int getEastInputSize() { return eastInputSize; }
+    public float getEastConfidence() { return eastConfidence; }
+    public int getTextRemoverInstances() { return textRemoverInstances; }
+}
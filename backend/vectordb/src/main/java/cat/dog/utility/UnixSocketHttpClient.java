@@ -0,0 +1,269 @@
+package cat.dog.utility;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/1.1 client over a Unix domain socket, for the model server worker on the same host.
+ * Connections are kept alive and reused; a request that finds its idle connection closed by the server
+ * is retried once on a fresh one. Only what the model server answers is supported: Content-Length and chunked bodies.
+ * A socket channel's streams ignore SO_TIMEOUT, so a request not answered within the read timeout has its connection
+ * closed by a watchdog and fails with a SocketTimeoutException; it is not retried.
+ */
+public class UnixSocketHttpClient {
+    // idle connections kept per socket, more than the embed limit ever has in flight to one worker is never needed
+    private static final int MAX_IDLE = 32;
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "unix-socket-read-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path socketPath;
+    private final long readTimeoutMs;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    private final AtomicLong opened = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+    public static class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @param name header name, any case.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final InputStream in;
+        final OutputStream out;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(Channels.newInputStream(channel));
+            this.out = Channels.newOutputStream(channel);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * @param readTimeoutMs longest wait for a whole response, 0 for none.
+     */
+    public UnixSocketHttpClient(Path socketPath, long readTimeoutMs) {
+        this.socketPath = socketPath;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * @throws ConnectException if no connection to the socket could be opened.
+     * @throws SocketTimeoutException if the server did not answer within the read timeout.
+     */
+    public Response post(String path, String contentType, String accept, byte[] body) throws IOException {
+        Connection connection = idle.pollFirst();
+        if (connection != null) {
+            reused.incrementAndGet();
+            try {
+                return exchange(connection, path, contentType, accept, body);
+            } catch (IOException e) {
+                connection.close();
+                if (Thread.currentThread().isInterrupted() || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                // the server closed the idle connection, the request is safe to send again
+            }
+        }
+        return exchange(open(), path, contentType, accept, body);
+    }
+
+    private Connection open() throws IOException {
+        try {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(UnixDomainSocketAddress.of(socketPath));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            opened.incrementAndGet();
+            return new Connection(channel);
+        } catch (ClosedByInterruptException e) {
+            // the caller was cancelled, the socket is fine
+            throw e;
+        } catch (IOException e) {
+            ConnectException connectException = new ConnectException("cannot connect to " + socketPath + ": " + e.getMessage());
+            connectException.initCause(e);
+            throw connectException;
+        }
+    }
+
+    private Response exchange(Connection connection, String path, String contentType, String accept, byte[] body) throws IOException {
+        boolean keep = false;
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> watchdog = readTimeoutMs <= 0 ? null : WATCHDOG.schedule(() -> {
+            timedOut.set(true);
+            connection.close();
+        }, readTimeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            String head = "POST " + path + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Accept: " + accept + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "\r\n";
+            connection.out.write(head.getBytes(StandardCharsets.US_ASCII));
+            connection.out.write(body);
+            connection.out.flush();
+
+            String statusLine = readLine(connection.in);
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            int status = Integer.parseInt(parts[1]);
+
+            Map<String, String> headers = new HashMap<>();
+            for (String line = readLine(connection.in); !line.isEmpty(); line = readLine(connection.in)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+
+            byte[] responseBody;
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                responseBody = readChunked(connection.in);
+            } else {
+                String length = headers.get("content-length");
+                responseBody = length == null ? new byte[0] : readFully(connection.in, Integer.parseInt(length));
+            }
+
+            keep = !"close".equalsIgnoreCase(headers.get("connection"));
+            return new Response(status, headers, responseBody);
+        } catch (IOException e) {
+            if (timedOut.get()) {
+                timeouts.incrementAndGet();
+                SocketTimeoutException timeout = new SocketTimeoutException(
+                        "no answer from " + socketPath + " within " + readTimeoutMs + " ms");
+                timeout.initCause(e);
+                throw timeout;
+            }
+            throw e;
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+            if (keep && !timedOut.get() && idle.size() < MAX_IDLE) {
+                idle.offerFirst(connection);
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed by the model server");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Expected " + length + " bytes, got " + bytes.length);
+        }
+        return bytes;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            int semicolon = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+            if (size == 0) {
+                // trailers, up to the empty line
+                String trailer;
+                do {
+                    trailer = readLine(in);
+                } while (!trailer.isEmpty());
+                return body.toByteArray();
+            }
+            body.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("socket", socketPath.toString());
+        stats.put("opened", opened.get());
+        stats.put("reused", reused.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("idle", idle.size());
+        return stats;
+    }
+}
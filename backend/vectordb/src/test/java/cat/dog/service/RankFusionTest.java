@@ -0,0 +1,65 @@
+package cat.dog.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RankFusionTest {
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void equalScoresKeepFirstSeenOrder() {
+        RankFusion fusion = new RankFusion()
+                .add(List.of("a", "b", "c"), 1.0f, 60)
+                .add(List.of("c", "b", "a"), 1.0f, 60);
+
+        assertEquals(fusion.getScore("a"), fusion.getScore("c"), DELTA);
+        assertEquals(List.of("a", "c", "b"), fusion.top(3));
+        assertEquals(List.of("a"), fusion.top(1));
+    }
+
+    @Test
+    public void topKSmallerThanCandidates() {
+        RankFusion fusion = new RankFusion(4).add(List.of("a", "b", "c", "d", "e"), 1.0f, 60);
+
+        assertEquals(5, fusion.size());
+        assertEquals(List.of("a", "b"), fusion.top(2));
+        assertEquals(List.of("a", "b", "c", "d", "e"), fusion.top(10));
+        assertEquals(List.of(), fusion.top(0));
+    }
+
+    @Test
+    public void appliesWeightAndKPerRanking() {
+        RankFusion fusion = new RankFusion()
+                .add(List.of("a", "b"), 2.0f, 0)
+                .add(List.of("b", "c"), 1.0f, 1);
+
+        // a: 2/1, b: 2/2 + 1/(1+1), c: 1/(1+2)
+        assertEquals(2.0f, fusion.getScore("a"), DELTA);
+        assertEquals(1.5f, fusion.getScore("b"), DELTA);
+        assertEquals(1.0f / 3, fusion.getScore("c"), DELTA);
+        assertEquals(0.0f, fusion.getScore("unranked"), DELTA);
+        assertEquals(List.of("a", "b", "c"), fusion.top(3));
+    }
+
+    @Test
+    public void topKMatchesFullSort() {
+        RankFusion fusion = new RankFusion(8);
+        List<String> forward = new ArrayList<>();
+        List<String> shuffled = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            forward.add("doc" + i);
+            shuffled.add("doc" + (i * 37 % 200));
+        }
+        fusion.add(forward, 1.0f, 60).add(shuffled, 0.5f, 10);
+
+        List<String> sorted = new ArrayList<>(forward);
+        // a stable sort keeps first-seen order on ties, as top does
+        sorted.sort(Comparator.comparingDouble((String doc) -> fusion.getScore(doc)).reversed());
+        assertEquals(sorted.subList(0, 25), fusion.top(25));
+    }
+}
@@ -0,0 +1,93 @@
+package cat.dog.utility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Token ids on a small merges file, checked against open_clip's SimpleTokenizer run on the same file.
+ * The vocabulary is 512 byte symbols, the 12 merges (ids 512-523), then start (524) and end (525).
+ */
+public class ClipTokenizerTest {
+    private static final String[] MERGES = {
+            "h e",
+            "l l",
+            "he ll",
+            "hell o</w>",
+            "c a",
+            "ca f",
+            // the two UTF-8 bytes of é
+            "Ã ©</w>",
+            "caf Ã©</w>",
+            // the four UTF-8 bytes of 😀
+            "ð Ł",
+            "ĺ Ģ</w>",
+            "ðŁ ĺĢ</w>",
+            "1</w> 2",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ClipTokenizer tokenizer;
+
+    @Before
+    public void setUp() throws Exception {
+        File vocab = folder.newFile("vocab.txt.gz");
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(vocab)), StandardCharsets.UTF_8)) {
+            writer.write("#version: test\n");
+            for (String merge : MERGES) {
+                writer.write(merge + "\n");
+            }
+        }
+        tokenizer = new ClipTokenizer(vocab.getAbsolutePath());
+    }
+
+    @Test
+    public void encodesAscii() {
+        // lowercased, whitespace collapsed, "!" is byte 0x21, the first byte symbol
+        assertEquals(List.of(515, 515, 256), tokenizer.encode("Hello   hello!"));
+    }
+
+    @Test
+    public void encodesNonAscii() {
+        // digits are split one by one, so the "1</w> 2" merge never applies
+        assertEquals(List.of(519, 272, 273), tokenizer.encode("Café 12"));
+    }
+
+    @Test
+    public void encodesEmoji() {
+        // two emoji form one token of eight bytes, only the last four carry the end of word
+        assertEquals(List.of(82, 334, 520, 246, 222, 522, 515), tokenizer.encode("so 😀😀 hello"));
+    }
+
+    @Test
+    public void padsToContextLength() {
+        long[] expected = new long[ClipTokenizer.CONTEXT_LENGTH];
+        expected[0] = 524;
+        expected[1] = 515;
+        expected[2] = 525;
+        assertArrayEquals(expected, tokenizer.tokenize("hello"));
+    }
+
+    @Test
+    public void truncatesKeepingEndToken() {
+        long[] tokens = tokenizer.tokenize("hello ".repeat(100));
+        assertEquals(ClipTokenizer.CONTEXT_LENGTH, tokens.length);
+        assertEquals(524, tokens[0]);
+        assertEquals(515, tokens[ClipTokenizer.CONTEXT_LENGTH - 2]);
+        assertEquals(525, tokens[ClipTokenizer.CONTEXT_LENGTH - 1]);
+    }
+}